@@ -2,6 +2,8 @@ package iuh.dhktpm14.cnm.chatappmongo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import iuh.dhktpm14.cnm.chatappmongo.chat.UserInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.converter.DefaultContentTypeResolver;
 import org.springframework.messaging.converter.MappingJackson2MessageConverter;
@@ -19,9 +21,46 @@ import java.util.List;
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    @Autowired
+    private UserInterceptor userInterceptor;
+
+    /**
+     * simple: broker trong bộ nhớ, chỉ chạy được một node
+     * relay: dùng stomp broker bên ngoài (rabbitmq, activemq), user registry chia sẻ qua broker
+     * bus: broker trong bộ nhớ, các node chuyển tin nhắn cho nhau qua ClusterBus (xem UserMessageSender)
+     */
+    @Value("${chat.broker.mode:simple}")
+    private String brokerMode;
+
+    @Value("${chat.broker.relay.host:localhost}")
+    private String relayHost;
+
+    @Value("${chat.broker.relay.port:61613}")
+    private int relayPort;
+
+    @Value("${chat.broker.relay.login:guest}")
+    private String relayLogin;
+
+    @Value("${chat.broker.relay.passcode:guest}")
+    private String relayPasscode;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/queue");
+        if ("relay".equals(brokerMode)) {
+            config.enableStompBrokerRelay("/queue", "/topic")
+                    .setRelayHost(relayHost)
+                    .setRelayPort(relayPort)
+                    .setClientLogin(relayLogin)
+                    .setClientPasscode(relayPasscode)
+                    .setSystemLogin(relayLogin)
+                    .setSystemPasscode(relayPasscode)
+                    // tin nhắn gửi đến user không kết nối với node này được chuyển cho các node khác qua broker
+                    .setUserDestinationBroadcast("/topic/unresolved-user")
+                    // các node gửi danh sách user của mình cho nhau để dùng chung user registry
+                    .setUserRegistryBroadcast("/topic/user-registry");
+        } else {
+            config.enableSimpleBroker("/queue");
+        }
         config.setApplicationDestinationPrefixes("/app");
         config.setUserDestinationPrefix("/users");
     }
@@ -47,7 +86,7 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
-        registration.interceptors(new UserInterceptor());
+        registration.interceptors(userInterceptor);
     }
 
     /**
@@ -1,16 +1,10 @@
 package iuh.dhktpm14.cnm.chatappmongo;
 
 import iuh.dhktpm14.cnm.chatappmongo.chat.UserPrincipal;
-import iuh.dhktpm14.cnm.chatappmongo.entity.User;
-import iuh.dhktpm14.cnm.chatappmongo.enumvalue.OnlineStatus;
-import iuh.dhktpm14.cnm.chatappmongo.jwt.JwtUtils;
-import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.PresenceService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
@@ -18,8 +12,6 @@ import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 import org.springframework.web.socket.messaging.SessionSubscribeEvent;
 import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
 
-import java.util.Date;
-
 /**
  * khi người dùng truy cập vào trang web thì sẽ dùng javascript để kết nối đến websocket để nhận tin nhắn realtime
  * class này lắng nghe sự kiện của người dùng đến websocket
@@ -28,16 +20,7 @@ import java.util.Date;
 public class WebSocketEventListener {
 
     @Autowired
-    private JwtUtils jwtUtils;
-
-    @Autowired
-    private UserRepository userRepository;
-
-    /**
-     * khi cập nhật một thuộc tính, dùng mongoTemplate chắc nhanh hơn repository.save()
-     */
-    @Autowired
-    private MongoTemplate mongoTemplate;
+    private PresenceService presenceService;
 
     @EventListener
     public void handleSessionConnect(SessionConnectEvent event) {
@@ -45,51 +28,27 @@ public class WebSocketEventListener {
 
     /**
      * kết nối thành công đến websocket
-     * cập nhật trạng thái của user thành ONLINE
+     * thêm session vào PresenceService, user ONLINE khi có session đầu tiên
      */
     @EventListener
     public void handleSessionConnected(SessionConnectedEvent event) {
         var userPrincipal = (UserPrincipal) event.getUser();
-        if (userPrincipal != null) {
-            String userId = userPrincipal.getName();
-            String accessToken = userPrincipal.getAccessToken();
-            if (userId != null && accessToken != null) {
-                if (jwtUtils.validateJwtToken(accessToken) && userId.equals(jwtUtils.getUserIdFromJwtToken(accessToken))) {
-                    if (userRepository.existsById(userId)) {
-                        var criteria = Criteria.where("_id").is(userId);
-                        var update = new Update();
-                        update.set("onlineStatus", OnlineStatus.ONLINE)
-                                .unset("lastOnline");
-                        mongoTemplate.updateFirst(Query.query(criteria), update, User.class);
-                    }
-                }
-            }
-        }
+        // principal đã được xác thực lúc CONNECT trong UserInterceptor
+        if (userPrincipal != null && userPrincipal.isValid())
+            presenceService.connect(userPrincipal.getName(), getSessionId(event));
     }
 
     /**
      * sự kiện khi người dùng đóng tab
-     * có thể cập nhật trạng thái truy cập cuối cùng ở đây
-     * cập nhật lastOnline cho user
+     * user chỉ OFFLINE và được cập nhật lastOnline khi đóng session cuối cùng
+     * <p>
+     * không kiểm tra hết hạn để session có token hết hạn vẫn được xóa
      */
     @EventListener
     public void handleSessionDisconnect(SessionDisconnectEvent event) {
         var userPrincipal = (UserPrincipal) event.getUser();
-        if (userPrincipal != null) {
-            String userId = userPrincipal.getName();
-            String accessToken = userPrincipal.getAccessToken();
-            if (userId != null && accessToken != null) {
-                if (jwtUtils.validateJwtToken(accessToken) && userId.equals(jwtUtils.getUserIdFromJwtToken(accessToken))) {
-                    if (userRepository.existsById(userId)) {
-                        var criteria = Criteria.where("_id").is(userId);
-                        var update = new Update();
-                        update.set("onlineStatus", OnlineStatus.OFFLINE)
-                                .set("lastOnline", new Date());
-                        mongoTemplate.updateFirst(Query.query(criteria), update, User.class);
-                    }
-                }
-            }
-        }
+        if (userPrincipal != null)
+            presenceService.disconnect(userPrincipal.getName(), event.getSessionId());
     }
 
     /**
@@ -103,4 +62,7 @@ public class WebSocketEventListener {
     public void handleSessionUnsubscribeEvent(SessionUnsubscribeEvent event) {
     }
 
+    private static String getSessionId(SessionConnectedEvent event) {
+        return SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+    }
 }
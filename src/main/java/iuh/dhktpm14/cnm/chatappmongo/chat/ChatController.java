@@ -1,54 +1,28 @@
 package iuh.dhktpm14.cnm.chatappmongo.chat;
 
 import iuh.dhktpm14.cnm.chatappmongo.dto.chat.MessageFromClient;
-import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
-import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
-import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
-import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
-import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
-import iuh.dhktpm14.cnm.chatappmongo.jwt.JwtUtils;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
-import iuh.dhktpm14.cnm.chatappmongo.repository.InboxMessageRepository;
-import iuh.dhktpm14.cnm.chatappmongo.repository.InboxRepository;
-import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
-import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.MessageService;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomCache;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.BulkOperations;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 @Controller
 public class ChatController {
 
     @Autowired
-    private RoomRepository roomRepository;
+    private RoomCache roomCache;
 
     @Autowired
-    private MessageRepository messageRepository;
-
-    @Autowired
-    private InboxMessageRepository inboxMessageRepository;
-
-    @Autowired
-    private InboxRepository inboxRepository;
-
-    @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private MessageDeliveryService messageDeliveryService;
 
     @Autowired
     private UserRepository userRepository;
@@ -57,87 +31,36 @@ public class ChatController {
     private MessageMapper messageMapper;
 
     @Autowired
-    private JwtUtils jwtUtils;
-
-    @Autowired
-    private MongoTemplate mongoTemplate;
+    private MessageService messageService;
 
     @MessageMapping("/chat")
     public void processMessage(@Payload MessageFromClient messageDto, UserPrincipal userPrincipal) {
 
-        String userId = userPrincipal.getName();
-        String accessToken = userPrincipal.getAccessToken();
-        // kiểm tra userId và accessToken gửi lên từ header stomClient
-        // nếu accessToken hợp lệ và accessToken thuộc về userId
-        if (userId != null && accessToken != null && jwtUtils.validateJwtToken(accessToken)
-                && userId.equals(jwtUtils.getUserIdFromJwtToken(accessToken))) {
-            Optional<Room> roomOptional = roomRepository.findById(messageDto.getRoomId());
+        // principal đã được xác thực lúc CONNECT trong UserInterceptor, chỉ kiểm tra token còn hạn
+        if (userPrincipal != null && userPrincipal.isValid()) {
+            String userId = userPrincipal.getName();
+            // room lấy từ RoomCache, chỉ thành viên của room mới được gửi tin nhắn
+            if (! roomCache.isMember(messageDto.getRoomId(), userId))
+                return;
+            var room = roomCache.getRoom(messageDto.getRoomId());
             Optional<User> userOptional = userRepository.findById(userId);
-            List<Inbox> inboxes = new ArrayList<>();
-            Message message = null;
 
-            if (roomOptional.isPresent() && userOptional.isPresent()) {
-                var room = roomOptional.get();
-                Set<Member> members = room.getMembers();
-                message = Message.builder().roomId(room.getId()).senderId(userId)
+            if (room != null && userOptional.isPresent()) {
+                var message = Message.builder().roomId(room.getId()).senderId(userId)
                         .createAt(new Date()).type(messageDto.getType())
                         .content(messageDto.getContent())
                         .build();
-                for (Member m : members) {
-                    // gửi tin nhắn đến các user
-                    // if (! m.getUserId().equals(user.getId())) {
-                    messagingTemplate.convertAndSendToUser(m.getUserId(), "/queue/messages",
-                            messageMapper.toMessageToClient(message));
-                    // }
-                    // tìm danh sách inbox của tất cả các thành viên
-                    // nếu có thì thêm vào danh sách
-                    if (inboxRepository.existsByOfUserIdAndRoomId(m.getUserId(), room.getId())) {
-                        var inbox = inboxRepository.findByOfUserIdAndRoomId(m.getUserId(), room.getId());
-                        if (inbox.isEmpty())
-                            inbox.setEmpty(false);
-                        inboxes.add(inbox);
-                        inboxRepository.save(inbox);
-                    } else {
-                        // nếu member chưa có inbox thì tạo mới rồi thêm vào danh sách
-                        var inbox = Inbox.builder().ofUserId(m.getUserId())
-                                .roomId(room.getId()).empty(false).build();
-                        inboxRepository.save(inbox);
-                        inboxes.add(inbox);
-                    }
-                }
-                incrementUnReadMessage(room, userId);
-            }
-            if (message != null && ! inboxes.isEmpty()) {
-                messageRepository.save(message);
-                for (Inbox inbox : inboxes) {
-                    var inboxMessage = InboxMessage.builder()
-                            .inboxId(inbox.getId())
-                            .messageId(message.getId())
-                            .messageCreateAt(message.getCreateAt())
-                            .build();
-                    inboxMessageRepository.save(inboxMessage);
-                }
-            }
-        }
-    }
-
-    private void incrementUnReadMessage(Room room, String currentUserId) {
-        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ReadTracking.class);
-        var i = 0;
-        for (Member member : room.getMembers()) {
-            if (! currentUserId.equals(member.getUserId())) {
-                var criteria = Criteria.where("roomId").is(room.getId())
-                        .and("userId").is(member.getUserId());
-                var update = new Update();
-                update.inc("unReadMessage", 1);
-                ops.updateOne(Query.query(criteria), update);
-                i++;
-                if (i % 20 == 0)
-                    ops.execute();
+                /*
+                tìm/tạo inbox, lưu message, inboxMessage và tăng số tin nhắn chưa đọc theo lô,
+                số lần truy vấn không phụ thuộc vào số thành viên
+                 */
+                if (messageService.saveMessageToRoom(message, room) == null)
+                    return;
+                // gửi tin nhắn đến các user sau khi đã lưu (đã có id), việc gửi chạy bất đồng bộ
+                messageDeliveryService.deliver(room.getId(), roomCache.getMemberIds(room.getId()), "/queue/messages",
+                        messageMapper.toMessageToClient(message));
             }
         }
-        if (i != 0)
-            ops.execute();
     }
 
 }
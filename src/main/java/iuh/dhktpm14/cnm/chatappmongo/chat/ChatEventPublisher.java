@@ -0,0 +1,138 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.chat.MessageDeleteToClient;
+import iuh.dhktpm14.cnm.chatappmongo.dto.chat.ReactionToClient;
+import iuh.dhktpm14.cnm.chatappmongo.dto.chat.ReadBatchToClient;
+import iuh.dhktpm14.cnm.chatappmongo.dto.chat.ReadByToClient;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * gửi các thay đổi của tin nhắn (bày tỏ cảm xúc, gỡ tin nhắn, đã xem) đến các thành viên của room qua websocket,
+ * dùng chung hàng đợi theo room của MessageDeliveryService nên thứ tự với tin nhắn mới được giữ nguyên
+ * <p>
+ * đã xem được gom theo room trong read-receipt-window: mỗi room gửi một sự kiện chứa lần đọc cuối cùng
+ * của từng user, nhiều user đọc cùng lúc hoặc user cuộn qua nhiều tin nhắn trong một chu kỳ chỉ tạo một sự kiện
+ */
+@Component
+public class ChatEventPublisher {
+
+    private static final String REACTION_DESTINATION = "/queue/reactions";
+    private static final String DELETE_DESTINATION = "/queue/messages/delete";
+    private static final String READ_DESTINATION = "/queue/readbyes";
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatEventPublisher.class);
+
+    @Autowired
+    private MessageDeliveryService messageDeliveryService;
+
+    @Autowired
+    private RoomCache roomCache;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Value("${chat.delivery.read-receipt-window:500ms}")
+    private Duration readReceiptWindow;
+
+    /**
+     * roomId -> (userId -> lần đọc cuối chưa gửi), map bên trong chỉ được sửa trong compute của map ngoài
+     */
+    private final Map<String, Map<String, ReadByToClient>> pendingReads = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void init() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "read-receipt-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, readReceiptWindow.toMillis());
+        flusher.scheduleWithFixedDelay(this::flushReads, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flushReads();
+    }
+
+    /**
+     * @param type null khi user bỏ cảm xúc
+     */
+    public void publishReaction(String roomId, String messageId, String userId, ReactionType type) {
+        var dto = new ReactionToClient();
+        dto.setRoomId(roomId);
+        dto.setMessageId(messageId);
+        dto.setReactByUser(userMapper.toUserProfileDto(userId));
+        dto.setType(type);
+        messageDeliveryService.deliver(roomId, roomCache.getMemberIds(roomId), REACTION_DESTINATION, dto);
+    }
+
+    public void publishDelete(String roomId, String messageId, String content) {
+        var dto = new MessageDeleteToClient();
+        dto.setRoomId(roomId);
+        dto.setMessageId(messageId);
+        dto.setContent(content);
+        messageDeliveryService.deliver(roomId, roomCache.getMemberIds(roomId), DELETE_DESTINATION, dto);
+    }
+
+    /**
+     * ghi nhận user đã đọc đến messageId, được gửi ở lần flush tiếp theo
+     */
+    public void publishRead(String roomId, String messageId, String userId, Date readAt) {
+        if (roomId == null || messageId == null || userId == null)
+            return;
+        var dto = new ReadByToClient();
+        dto.setRoomId(roomId);
+        dto.setMessageId(messageId);
+        dto.setReadAt(readAt);
+        pendingReads.compute(roomId, (id, reads) -> {
+            if (reads == null)
+                reads = new LinkedHashMap<>();
+            reads.put(userId, dto);
+            return reads;
+        });
+    }
+
+    void flushReads() {
+        for (String roomId : pendingReads.keySet()) {
+            var reads = pendingReads.remove(roomId);
+            if (reads == null)
+                continue;
+            try {
+                // profile của tất cả user trong chu kỳ lấy bằng một lần
+                Map<String, UserProfileDto> users = userMapper.toUserProfileDtos(reads.keySet());
+                reads.forEach((userId, dto) -> dto.setReadByUser(users.get(userId)));
+                var batch = new ReadBatchToClient();
+                batch.setRoomId(roomId);
+                batch.setReadbyes(new ArrayList<>(reads.values()));
+                messageDeliveryService.deliver(roomId, roomCache.getMemberIds(roomId), READ_DESTINATION, batch);
+            } catch (Exception e) {
+                logger.error("Read receipt flush of room {} failed: {}", roomId, e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * gửi tin nhắn đến các thành viên của room qua websocket, tách biệt với việc lưu vào database
+ * <p>
+ * mỗi room có một hàng đợi giới hạn kích thước, tại một thời điểm chỉ có một luồng lấy tin nhắn
+ * ra khỏi hàng đợi của room nên thứ tự tin nhắn trong room được giữ nguyên,
+ * còn một tin nhắn thì được gửi song song đến các thành viên bằng worker pool
+ * <p>
+ * khi hàng đợi của room đầy thì tin nhắn bị bỏ (client sẽ lấy lại qua api), số lần bỏ được đếm trong metric
+ * <p>
+ * việc gửi đến từng user (kể cả user kết nối với node khác) do UserMessageSender đảm nhận
+ */
+@Component
+public class MessageDeliveryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageDeliveryService.class);
+
+    @Autowired
+    private UserMessageSender userMessageSender;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.delivery.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${chat.delivery.dispatcher-threads:4}")
+    private int dispatcherThreads;
+
+    @Value("${chat.delivery.worker-threads:8}")
+    private int workerThreads;
+
+    /**
+     * số tin nhắn tối đa lấy ra từ một room trước khi nhường luồng cho room khác
+     */
+    @Value("${chat.delivery.drain-batch:32}")
+    private int drainBatch;
+
+    private final Map<String, RoomQueue> roomQueues = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private ExecutorService dispatcher;
+    private ExecutorService workers;
+    private Counter droppedCounter;
+    private Counter deliveredCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        dispatcher = Executors.newFixedThreadPool(dispatcherThreads);
+        workers = Executors.newFixedThreadPool(workerThreads);
+        Gauge.builder("chat.delivery.queue.depth", queueDepth, AtomicInteger::get)
+                .description("Số tin nhắn đang chờ gửi qua websocket")
+                .register(meterRegistry);
+        droppedCounter = Counter.builder("chat.delivery.dropped")
+                .description("Số tin nhắn bị bỏ do hàng đợi của room đã đầy")
+                .register(meterRegistry);
+        deliveredCounter = Counter.builder("chat.delivery.delivered")
+                .description("Số lần gửi thành công đến một user")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("chat.delivery.failed")
+                .description("Số lần gửi thất bại đến một user")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        dispatcher.shutdown();
+        dispatcher.awaitTermination(5, TimeUnit.SECONDS);
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * đưa payload vào hàng đợi của room để gửi đến destination của từng user
+     *
+     * @return false nếu hàng đợi của room đã đầy và payload bị bỏ
+     */
+    public boolean deliver(String roomId, Collection<String> userIds, String destination, Object payload) {
+        if (roomId == null || userIds == null || userIds.isEmpty())
+            return true;
+        var delivery = new Delivery(new ArrayList<>(userIds), destination, payload);
+        var offered = new AtomicBoolean();
+        // offer trong compute để không chạy xen với việc xóa hàng đợi rỗng của room (removeIfIdle)
+        var queue = roomQueues.compute(roomId, (id, current) -> {
+            var result = current != null ? current : new RoomQueue(id, queueCapacity);
+            offered.set(result.deliveries.offer(delivery));
+            return result;
+        });
+        if (! offered.get()) {
+            droppedCounter.increment();
+            logger.warn("Delivery queue of room {} is full, payload dropped", roomId);
+            return false;
+        }
+        queueDepth.incrementAndGet();
+        schedule(queue);
+        return true;
+    }
+
+    private void schedule(RoomQueue queue) {
+        if (queue.scheduled.compareAndSet(false, true))
+            dispatcher.execute(() -> drain(queue));
+    }
+
+    private void drain(RoomQueue queue) {
+        try {
+            Delivery delivery;
+            var i = 0;
+            while (i < drainBatch && (delivery = queue.deliveries.poll()) != null) {
+                queueDepth.decrementAndGet();
+                send(delivery);
+                i++;
+            }
+        } finally {
+            queue.scheduled.set(false);
+            // trong lúc đang gửi có thể có tin nhắn mới được thêm vào
+            if (! queue.deliveries.isEmpty())
+                schedule(queue);
+            else
+                removeIfIdle(queue);
+        }
+    }
+
+    /**
+     * xóa hàng đợi của room khi đã gửi hết và không có luồng nào đang xử lý,
+     * để map không giữ hàng đợi của mọi room từng có tin nhắn
+     */
+    private void removeIfIdle(RoomQueue queue) {
+        roomQueues.computeIfPresent(queue.roomId, (id, current) ->
+                current == queue && current.deliveries.isEmpty() && ! current.scheduled.get() ? null : current);
+    }
+
+    /**
+     * chia danh sách user thành từng phần để gửi song song,
+     * chờ gửi xong tất cả rồi mới xử lý tin nhắn tiếp theo của room
+     */
+    private void send(Delivery delivery) {
+        List<String> userIds = delivery.userIds;
+        int chunkSize = Math.max(1, (userIds.size() + workerThreads - 1) / workerThreads);
+        if (userIds.size() <= chunkSize) {
+            sendToUsers(userIds, delivery);
+            return;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (var from = 0; from < userIds.size(); from += chunkSize) {
+            List<String> chunk = userIds.subList(from, Math.min(from + chunkSize, userIds.size()));
+            futures.add(CompletableFuture.runAsync(() -> sendToUsers(chunk, delivery), workers));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    private void sendToUsers(List<String> userIds, Delivery delivery) {
+        int failed = userMessageSender.sendToUsers(userIds, delivery.destination, delivery.payload);
+        deliveredCounter.increment(userIds.size() - failed);
+        failedCounter.increment(failed);
+    }
+
+    private static class RoomQueue {
+        private final String roomId;
+        private final BlockingQueue<Delivery> deliveries;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        RoomQueue(String roomId, int capacity) {
+            this.roomId = roomId;
+            this.deliveries = new LinkedBlockingQueue<>(capacity);
+        }
+    }
+
+    private static class Delivery {
+        private final List<String> userIds;
+        private final String destination;
+        private final Object payload;
+
+        Delivery(List<String> userIds, String destination, Object payload) {
+            this.userIds = userIds;
+            this.destination = destination;
+            this.payload = payload;
+        }
+    }
+
+}
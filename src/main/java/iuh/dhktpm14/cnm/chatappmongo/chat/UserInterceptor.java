@@ -1,48 +1,51 @@
 package iuh.dhktpm14.cnm.chatappmongo.chat;
 
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
+import iuh.dhktpm14.cnm.chatappmongo.jwt.JwtUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.support.ChannelInterceptor;
 import org.springframework.messaging.support.MessageHeaderAccessor;
-
-import java.util.ArrayList;
-import java.util.Map;
-
-import static org.springframework.messaging.support.NativeMessageHeaderAccessor.NATIVE_HEADERS;
+import org.springframework.stereotype.Component;
 
 /**
- * tạm thời khi connect lên websocket bằng stomclient thì truyền vào header
+ * khi connect lên websocket bằng stomclient thì truyền vào header
  * chứa id cửa người dùng hiện tại và accessToken
  * <p>
  * id: khi user có tin nhắn mới, server sẽ gửi tin nhắn về theo id này
- * accessToken: tạm thời dùng để xác thực
+ * accessToken: được xác thực một lần lúc CONNECT, các frame sau dùng lại principal đã xác thực
  */
+@Component
 public class UserInterceptor implements ChannelInterceptor {
 
+    @Autowired
+    private JwtUtils jwtUtils;
+
     /**
      * đọc header để lấy id và accessToken trước khi tin nhắn được gửi lên server
+     * token không hợp lệ hoặc không thuộc về userId thì từ chối kết nối
      */
     @Override
     public Message<?> preSend(Message<?> message, MessageChannel channel) {
         StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
 
         if (accessor != null && StompCommand.CONNECT.equals(accessor.getCommand())) {
-            Object raw = message.getHeaders().get(NATIVE_HEADERS);
-
-            if (raw instanceof Map) {
-                Object userId = ((Map) raw).get("userId");
-                Object accessToken = ((Map) raw).get("access_token");
-
-                if (userId instanceof ArrayList) {
-                    var principal = new UserPrincipal(((ArrayList<String>) userId).get(0));
-                    principal.setAccessToken(((ArrayList<String>) accessToken).get(0));
-                    // set người dùng hiện tại có 2 thuộc tính id và accessToken
-                    accessor.setUser(principal);
-                }
-            }
+            String userId = accessor.getFirstNativeHeader("userId");
+            String accessToken = accessor.getFirstNativeHeader("access_token");
+            if (userId == null || accessToken == null)
+                throw new UnAuthenticateException();
+
+            // parse jwt một lần để vừa kiểm tra chữ ký vừa lấy userId và thời gian hết hạn
+            var claims = jwtUtils.parseClaims(accessToken);
+            if (claims == null || ! userId.equals(claims.getSubject()))
+                throw new UnAuthenticateException();
+
+            // set người dùng hiện tại của session, các frame sau sẽ dùng principal này
+            accessor.setUser(new UserPrincipal(userId, claims.getExpiration()));
         }
         return message;
     }
-}
\ No newline at end of file
+}
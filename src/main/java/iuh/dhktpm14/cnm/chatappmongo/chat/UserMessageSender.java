@@ -0,0 +1,178 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterBus;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterEnvelope;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterUserRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * gửi payload đến destination của user, dùng được với mọi chat.broker.mode
+ * <p>
+ * simple, relay: gửi thẳng qua SimpMessagingTemplate (với relay thì spring tự chuyển cho node đang giữ session)
+ * <p>
+ * bus: user đang kết nối với node này thì gửi trực tiếp, đồng thời tìm các node khác đang giữ session
+ * của user trong ClusterUserRegistry và gửi một envelope cho mỗi node qua ClusterBus
+ */
+@Component
+public class UserMessageSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserMessageSender.class);
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private SimpUserRegistry simpUserRegistry;
+
+    /**
+     * chỉ có khi chat.broker.mode=bus
+     */
+    @Autowired(required = false)
+    private ClusterBus clusterBus;
+
+    @Autowired(required = false)
+    private ClusterUserRegistry clusterUserRegistry;
+
+    @Value("${chat.broker.node-id:}")
+    private String nodeId;
+
+    /**
+     * cùng cấu hình với converter trong WebSocketConfig để json gửi qua bus giống json gửi trực tiếp
+     */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @PostConstruct
+    public void init() {
+        if (nodeId == null || nodeId.isBlank())
+            nodeId = UUID.randomUUID().toString();
+        if (isBusMode())
+            clusterBus.subscribe(nodeId, this::receive);
+    }
+
+    /**
+     * id của node hiện tại trong ClusterUserRegistry
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return số user gửi thất bại
+     */
+    public int sendToUsers(List<String> userIds, String destination, Object payload) {
+        if (! isBusMode())
+            return sendLocal(userIds, destination, payload);
+
+        List<String> local = new ArrayList<>();
+        for (String userId : userIds)
+            if (simpUserRegistry.getUser(userId) != null)
+                local.add(userId);
+        int failed = sendLocal(local, destination, payload);
+        // user có thể mở nhiều tab kết nối với nhiều node nên luôn tìm node khác cho tất cả user
+        failed += sendRemote(userIds, destination, payload);
+        return Math.min(failed, userIds.size());
+    }
+
+    private int sendLocal(List<String> userIds, String destination, Object payload) {
+        var failed = 0;
+        for (String userId : userIds) {
+            try {
+                messagingTemplate.convertAndSendToUser(userId, destination, payload);
+            } catch (Exception e) {
+                failed++;
+                logger.error("Cannot deliver to user {}: {}", userId, e.getMessage());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * user không kết nối với node nào thì bỏ qua, không tính là thất bại
+     */
+    private int sendRemote(List<String> userIds, String destination, Object payload) {
+        Map<String, List<String>> nodes;
+        String json;
+        try {
+            nodes = clusterUserRegistry.findNodes(userIds, nodeId);
+            if (nodes.isEmpty())
+                return 0;
+            json = objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException | RuntimeException e) {
+            logger.error("Cannot forward payload to other nodes: {}", e.getMessage());
+            return userIds.size();
+        }
+
+        var failed = 0;
+        for (Map.Entry<String, List<String>> node : nodes.entrySet()) {
+            try {
+                clusterBus.publish(ClusterEnvelope.builder()
+                        .sourceNode(nodeId)
+                        .targetNode(node.getKey())
+                        .userIds(node.getValue())
+                        .destination(destination)
+                        .payload(json)
+                        .createAt(new Date())
+                        .build());
+            } catch (Exception e) {
+                failed += node.getValue().size();
+                logger.error("Cannot publish to node {}: {}", node.getKey(), e.getMessage());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * nhận envelope từ node khác, gửi đến các user đang kết nối với node này
+     */
+    private void receive(ClusterEnvelope envelope) {
+        try {
+            var payload = objectMapper.readTree(envelope.getPayload());
+            sendLocal(envelope.getUserIds(), envelope.getDestination(), payload);
+        } catch (JsonProcessingException e) {
+            logger.error("Invalid payload from node {}: {}", envelope.getSourceNode(), e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void handleSessionConnected(SessionConnectedEvent event) {
+        var user = event.getUser();
+        String sessionId = getSessionId(event);
+        if (isBusMode() && user != null && sessionId != null)
+            clusterUserRegistry.register(nodeId, user.getName(), sessionId);
+    }
+
+    @EventListener
+    public void handleSessionDisconnect(SessionDisconnectEvent event) {
+        if (isBusMode())
+            clusterUserRegistry.unregister(nodeId, event.getSessionId());
+    }
+
+    private boolean isBusMode() {
+        return clusterBus != null && clusterUserRegistry != null;
+    }
+
+    private static String getSessionId(AbstractSubProtocolEvent event) {
+        return SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+    }
+
+}
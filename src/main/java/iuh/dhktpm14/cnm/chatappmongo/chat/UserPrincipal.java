@@ -1,29 +1,42 @@
 package iuh.dhktpm14.cnm.chatappmongo.chat;
 
 import lombok.Getter;
-import lombok.Setter;
 
 import java.security.Principal;
+import java.util.Date;
 
 /**
  * class mở rộng Principal, dùng để lưu thông tin người dùng hiện tại trong websocket
  * khi server gửi tin nhắn cho client sẽ gửi dựa vào giá trị trong hàm getName()
  * getName() ở đây sẽ là id của người dùng hiện tại được truyền thông qua header
- * accessToken cũng sẽ được đọc từ header dùng để xác thực
+ * <p>
+ * principal chỉ được tạo trong UserInterceptor sau khi accessToken đã được xác thực lúc CONNECT,
+ * các frame sau đó chỉ cần kiểm tra token chưa hết hạn, không cần parse lại jwt
  */
 public class UserPrincipal implements Principal {
 
     private final String userId;
-    @Setter
+
+    /**
+     * thời điểm hết hạn của accessToken dùng để CONNECT
+     */
     @Getter
-    private String accessToken;
+    private final Date expiresAt;
 
-    public UserPrincipal(String userId) {
+    public UserPrincipal(String userId, Date expiresAt) {
         this.userId = userId;
+        this.expiresAt = expiresAt;
     }
 
     @Override
     public String getName() {
         return userId;
     }
+
+    /**
+     * principal đã được xác thực lúc CONNECT và token chưa hết hạn
+     */
+    public boolean isValid() {
+        return userId != null && expiresAt != null && expiresAt.after(new Date());
+    }
 }
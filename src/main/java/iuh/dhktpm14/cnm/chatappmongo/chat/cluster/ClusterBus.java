@@ -0,0 +1,26 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * kênh truyền tin giữa các node chat (chat.broker.mode=bus)
+ */
+public interface ClusterBus {
+
+    /**
+     * targetNode của envelope gửi đến tất cả các node, node nào cần nhận thì subscribe với id này
+     * và tự bỏ qua envelope do chính nó gửi (sourceNode)
+     */
+    String BROADCAST = "*";
+
+    /**
+     * gửi envelope đến node envelope.targetNode
+     */
+    void publish(ClusterEnvelope envelope);
+
+    /**
+     * nhận các envelope gửi đến nodeId
+     */
+    void subscribe(String nodeId, Consumer<ClusterEnvelope> handler);
+
+}
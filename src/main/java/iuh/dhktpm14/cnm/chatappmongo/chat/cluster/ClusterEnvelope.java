@@ -0,0 +1,29 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * payload được chuyển từ node này sang node khác qua ClusterBus,
+ * node nhận sẽ gửi payload đến destination của từng user đang kết nối với nó
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterEnvelope {
+    private String sourceNode;
+    private String targetNode;
+    private List<String> userIds;
+    private String destination;
+    /**
+     * payload đã được chuyển thành json
+     */
+    private String payload;
+    private Date createAt;
+}
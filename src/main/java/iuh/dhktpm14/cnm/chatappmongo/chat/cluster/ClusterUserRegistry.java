@@ -0,0 +1,23 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * danh sách session websocket của tất cả các node, dùng chung giữa các node (chat.broker.mode=bus)
+ */
+public interface ClusterUserRegistry {
+
+    void register(String nodeId, String userId, String sessionId);
+
+    void unregister(String nodeId, String sessionId);
+
+    /**
+     * tìm các node đang có session của user, không tính node excludeNodeId
+     *
+     * @return map nodeId -> danh sách userId đang kết nối với node đó
+     */
+    Map<String, List<String>> findNodes(Collection<String> userIds, String excludeNodeId);
+
+}
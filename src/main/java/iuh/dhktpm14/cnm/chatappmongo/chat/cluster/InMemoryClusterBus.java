@@ -0,0 +1,42 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * ClusterBus trong bộ nhớ (chat.broker.bus.transport=memory),
+ * dùng khi chạy một node hoặc để test nhiều node trong cùng một jvm
+ */
+@Component
+@ConditionalOnExpression("'${chat.broker.mode:simple}' == 'bus' && '${chat.broker.bus.transport:mongo}' == 'memory'")
+public class InMemoryClusterBus implements ClusterBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryClusterBus.class);
+
+    private final Map<String, List<Consumer<ClusterEnvelope>>> handlers = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(ClusterEnvelope envelope) {
+        for (Consumer<ClusterEnvelope> handler : handlers.getOrDefault(envelope.getTargetNode(), List.of())) {
+            try {
+                handler.accept(envelope);
+            } catch (Exception e) {
+                logger.error("Cluster bus handler of node {} failed: {}", envelope.getTargetNode(), e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String nodeId, Consumer<ClusterEnvelope> handler) {
+        handlers.computeIfAbsent(nodeId, x -> new CopyOnWriteArrayList<>()).add(handler);
+    }
+
+}
@@ -0,0 +1,50 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClusterUserRegistry trong bộ nhớ, đi cùng InMemoryClusterBus (chat.broker.bus.transport=memory)
+ */
+@Component
+@ConditionalOnExpression("'${chat.broker.mode:simple}' == 'bus' && '${chat.broker.bus.transport:mongo}' == 'memory'")
+public class InMemoryClusterUserRegistry implements ClusterUserRegistry {
+
+    /**
+     * sessionId -> [nodeId, userId]
+     */
+    private final Map<String, String[]> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void register(String nodeId, String userId, String sessionId) {
+        sessions.put(sessionId, new String[]{nodeId, userId});
+    }
+
+    @Override
+    public void unregister(String nodeId, String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    @Override
+    public Map<String, List<String>> findNodes(Collection<String> userIds, String excludeNodeId) {
+        Set<String> users = new HashSet<>(userIds);
+        Map<String, Set<String>> nodes = new HashMap<>();
+        for (String[] session : sessions.values()) {
+            if (! session[0].equals(excludeNodeId) && users.contains(session[1]))
+                nodes.computeIfAbsent(session[0], x -> new HashSet<>()).add(session[1]);
+        }
+        Map<String, List<String>> result = new HashMap<>();
+        nodes.forEach((node, x) -> result.put(node, new ArrayList<>(x)));
+        return result;
+    }
+
+}
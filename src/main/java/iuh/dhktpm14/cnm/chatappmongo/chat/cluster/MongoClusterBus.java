@@ -0,0 +1,106 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.MessageListener;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.TailableCursorRequest;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * ClusterBus dùng capped collection của mongo (chat.broker.bus.transport=mongo)
+ * <p>
+ * node gửi insert envelope vào collection, mỗi node mở một tailable cursor lọc theo targetNode của mình,
+ * capped collection tự xóa envelope cũ nên không cần dọn dẹp, không cần replica set như change stream
+ */
+@Component
+@ConditionalOnExpression("'${chat.broker.mode:simple}' == 'bus' && '${chat.broker.bus.transport:mongo}' == 'mongo'")
+public class MongoClusterBus implements ClusterBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoClusterBus.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${chat.broker.bus.collection:cluster_bus}")
+    private String collectionName;
+
+    /**
+     * kích thước tối đa (byte) của capped collection
+     */
+    @Value("${chat.broker.bus.capped-size:67108864}")
+    private long cappedSize;
+
+    private MessageListenerContainer container;
+
+    @PostConstruct
+    public void init() {
+        if (! mongoTemplate.collectionExists(collectionName)) {
+            mongoTemplate.createCollection(collectionName, CollectionOptions.empty().capped().size(cappedSize));
+            // tailable cursor trên collection rỗng sẽ bị đóng ngay nên thêm một document đầu tiên
+            mongoTemplate.insert(new Document("createAt", new Date()), collectionName);
+        }
+        container = new DefaultMessageListenerContainer(mongoTemplate);
+        container.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        container.stop();
+    }
+
+    @Override
+    public void publish(ClusterEnvelope envelope) {
+        var document = new Document("sourceNode", envelope.getSourceNode())
+                .append("targetNode", envelope.getTargetNode())
+                .append("userIds", envelope.getUserIds())
+                .append("destination", envelope.getDestination())
+                .append("payload", envelope.getPayload())
+                .append("createAt", envelope.getCreateAt() == null ? new Date() : envelope.getCreateAt());
+        mongoTemplate.insert(document, collectionName);
+    }
+
+    @Override
+    public void subscribe(String nodeId, Consumer<ClusterEnvelope> handler) {
+        // chỉ nhận envelope được gửi sau khi node khởi động, không xử lý lại envelope cũ
+        var criteria = Criteria.where("targetNode").is(nodeId).and("createAt").gte(new Date());
+        MessageListener<Document, Document> listener = message -> {
+            try {
+                handler.accept(toEnvelope(message.getBody()));
+            } catch (Exception e) {
+                logger.error("Cluster bus handler of node {} failed: {}", nodeId, e.getMessage());
+            }
+        };
+        var request = TailableCursorRequest.builder(listener)
+                .collection(collectionName)
+                .filter(Query.query(criteria))
+                .build();
+        container.register(request, Document.class);
+    }
+
+    private static ClusterEnvelope toEnvelope(Document document) {
+        return ClusterEnvelope.builder()
+                .sourceNode(document.getString("sourceNode"))
+                .targetNode(document.getString("targetNode"))
+                .userIds(document.getList("userIds", String.class))
+                .destination(document.getString("destination"))
+                .payload(document.getString("payload"))
+                .createAt(document.getDate("createAt"))
+                .build();
+    }
+
+}
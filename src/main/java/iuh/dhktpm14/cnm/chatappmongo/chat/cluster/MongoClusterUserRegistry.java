@@ -0,0 +1,121 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat.cluster;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClusterUserRegistry lưu trong collection cluster_session, mỗi session websocket là một document
+ * <p>
+ * mỗi node định kỳ cập nhật heartbeatAt cho các session của mình bằng một lệnh updateMulti,
+ * index ttl trên heartbeatAt tự xóa session của node bị tắt đột ngột
+ */
+@Component
+@ConditionalOnExpression("'${chat.broker.mode:simple}' == 'bus' && '${chat.broker.bus.transport:mongo}' == 'mongo'")
+public class MongoClusterUserRegistry implements ClusterUserRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoClusterUserRegistry.class);
+
+    private static final String COLLECTION = "cluster_session";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${chat.broker.bus.session-ttl:90s}")
+    private Duration sessionTtl;
+
+    /**
+     * các node trong jvm này, dùng để heartbeat và xóa session khi tắt
+     */
+    private final Set<String> localNodes = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService heartbeat;
+
+    @PostConstruct
+    public void init() {
+        var indexOps = mongoTemplate.indexOps(COLLECTION);
+        indexOps.ensureIndex(new Index().on("userId", Sort.Direction.ASC));
+        indexOps.ensureIndex(new Index().on("heartbeatAt", Sort.Direction.ASC).expire(sessionTtl));
+
+        long period = Math.max(1, sessionTtl.toMillis() / 3);
+        heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleWithFixedDelay(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeat.shutdownNow();
+        if (! localNodes.isEmpty())
+            mongoTemplate.remove(Query.query(Criteria.where("nodeId").in(localNodes)), COLLECTION);
+    }
+
+    @Override
+    public void register(String nodeId, String userId, String sessionId) {
+        localNodes.add(nodeId);
+        var update = new Update();
+        update.set("userId", userId)
+                .set("nodeId", nodeId)
+                .set("heartbeatAt", new Date());
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(sessionId)), update, COLLECTION);
+    }
+
+    @Override
+    public void unregister(String nodeId, String sessionId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(sessionId)), COLLECTION);
+    }
+
+    @Override
+    public Map<String, List<String>> findNodes(Collection<String> userIds, String excludeNodeId) {
+        var criteria = Criteria.where("userId").in(userIds).and("nodeId").ne(excludeNodeId);
+        var query = Query.query(criteria);
+        query.fields().include("userId").include("nodeId");
+
+        Map<String, Set<String>> nodes = new HashMap<>();
+        for (Document document : mongoTemplate.find(query, Document.class, COLLECTION))
+            nodes.computeIfAbsent(document.getString("nodeId"), x -> new LinkedHashSet<>())
+                    .add(document.getString("userId"));
+
+        Map<String, List<String>> result = new HashMap<>();
+        nodes.forEach((node, x) -> result.put(node, new ArrayList<>(x)));
+        return result;
+    }
+
+    private void heartbeat() {
+        try {
+            if (localNodes.isEmpty())
+                return;
+            var update = new Update();
+            update.set("heartbeatAt", new Date());
+            mongoTemplate.updateMulti(Query.query(Criteria.where("nodeId").in(localNodes)), update, COLLECTION);
+        } catch (Exception e) {
+            logger.error("Cluster session heartbeat failed: {}", e.getMessage());
+        }
+    }
+
+}
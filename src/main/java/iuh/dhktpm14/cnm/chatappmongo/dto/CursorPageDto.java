@@ -0,0 +1,23 @@
+package iuh.dhktpm14.cnm.chatappmongo.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * một trang dữ liệu phân trang theo cursor, không có totalElements
+ * nextCursor: truyền vào lần gọi tiếp theo để lấy trang kế tiếp, null khi đã hết dữ liệu
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CursorPageDto<T> implements Serializable {
+    private List<T> content;
+    private String nextCursor;
+    private boolean hasNext;
+}
@@ -0,0 +1,14 @@
+package iuh.dhktpm14.cnm.chatappmongo.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.io.Serializable;
+
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FriendSuggestionDto implements Serializable {
+    private UserProfileDto user;
+    private int mutualFriends;
+    private int sharedGroups;
+}
@@ -0,0 +1,22 @@
+package iuh.dhktpm14.cnm.chatappmongo.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * các thay đổi của một inbox kể từ cursor
+ * messages: tin nhắn mới và tin nhắn đã bị thay đổi (gỡ, ghim, cảm xúc), sắp xếp theo thời gian thay đổi
+ * readbyes: thay đổi đã xem của các thành viên
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class InboxSyncDto implements Serializable {
+    private String inboxId;
+    private String roomId;
+    private List<MessageDto> messages = new ArrayList<>();
+    private List<ReadByDto> readbyes = new ArrayList<>();
+}
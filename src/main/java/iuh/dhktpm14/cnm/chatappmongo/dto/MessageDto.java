@@ -4,16 +4,19 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Reaction;
 import iuh.dhktpm14.cnm.chatappmongo.enumvalue.MessageStatus;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
 import lombok.Data;
 
 import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 @Data
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class MessageDto implements Serializable {
     private String id;
+    private Long seq;
     private UserProfileDto sender;
 
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
@@ -24,6 +27,7 @@ public class MessageDto implements Serializable {
     private Boolean deleted;
     private MessageStatus status;
     private List<Reaction> reactions;
+    private Map<ReactionType, Long> reactionCounts;
     private List<ReadByDto> readbyes;
     private MessageDto reply;
 }
@@ -11,6 +11,10 @@ import java.util.Date;
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class ReadByDto implements Serializable {
     private UserProfileDto readByUser;
+    /**
+     * chỉ có khi đồng bộ (SyncService), tin nhắn cuối cùng user đã xem
+     */
+    private String messageId;
 
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
     private Date readAt;
@@ -0,0 +1,19 @@
+package iuh.dhktpm14.cnm.chatappmongo.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * kết quả một lần đồng bộ
+ * cursor: truyền vào lần đồng bộ tiếp theo, hasMore=true thì gọi tiếp ngay để lấy lô kế tiếp
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SyncDto implements Serializable {
+    private List<InboxSyncDto> inboxes;
+    private String cursor;
+    private boolean hasMore;
+}
@@ -14,6 +14,7 @@ import java.util.Date;
 public class MessageToClient implements Serializable {
     private String id;
     private String roomId;
+    private Long seq;
     private UserProfileDto sender;
 
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
@@ -0,0 +1,15 @@
+package iuh.dhktpm14.cnm.chatappmongo.dto.chat;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * các lần đọc của một room được gom trong một chu kỳ (ChatEventPublisher), mỗi user một phần tử
+ */
+@Data
+public class ReadBatchToClient implements Serializable {
+    private String roomId;
+    private List<ReadByToClient> readbyes;
+}
@@ -8,8 +8,6 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.index.IndexDirection;
-import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.io.Serializable;
@@ -21,10 +19,12 @@ import java.util.Date;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
+// lấy danh sách bạn theo userId và xóa bạn theo {userId, friendId} ở cả hai chiều dùng unique index
+// {userId: 1, friendId: 1} để kết bạn (upsert) đồng thời không tạo record trùng,
+// index được FriendDeduplicationJob tạo sau khi xóa record trùng
 public class Friend implements Serializable {
     @Id
     private String id;
-    @Indexed(background = true, direction = IndexDirection.ASCENDING)
     private String userId;
     private String friendId;
 
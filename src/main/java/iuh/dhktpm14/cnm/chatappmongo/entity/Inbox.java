@@ -1,5 +1,6 @@
 package iuh.dhktpm14.cnm.chatappmongo.entity;
 
+import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -11,6 +12,7 @@ import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.io.Serializable;
+import java.util.Date;
 
 @Document
 @Data
@@ -18,6 +20,9 @@ import java.io.Serializable;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
+// khi gửi tin nhắn tìm inbox của tất cả thành viên theo roomId và ofUserId $in,
+// unique index {roomId: 1, ofUserId: 1} để hai request cùng upsert không tạo hai inbox cho một thành viên
+// được InboxDeduplicationJob tạo sau khi gộp inbox trùng
 public class Inbox implements Serializable {
     @Id
     private String id;
@@ -25,4 +30,22 @@ public class Inbox implements Serializable {
     private String ofUserId;
     private String roomId;
     private boolean empty;
+
+    /**
+     * chỉ hiển thị tin nhắn gửi sau thời điểm này (thời điểm vào nhóm hoặc xóa cuộc trò chuyện)
+     */
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date clearedBefore;
+
+    /**
+     * thời điểm rời nhóm, room fanOutOnRead chỉ hiển thị tin nhắn gửi trước thời điểm này
+     */
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date leftAt;
+
+    /**
+     * true khi còn inboxMessage cũ hơn clearedBefore chưa được InboxCompactor xóa
+     */
+    @Indexed(background = true, sparse = true)
+    private Boolean pendingCompaction;
 }
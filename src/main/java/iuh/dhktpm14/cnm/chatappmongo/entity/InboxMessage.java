@@ -22,7 +22,7 @@ import java.util.Date;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
-@CompoundIndexes(@CompoundIndex(background = true, def = "{inboxId: 1, messageCreateAt: -1}"))
+@CompoundIndexes(@CompoundIndex(background = true, def = "{inboxId: 1, messageCreateAt: -1, _id: -1}"))
 public class InboxMessage implements Serializable {
     @Id
     private String id;
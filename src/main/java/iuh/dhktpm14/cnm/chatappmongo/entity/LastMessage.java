@@ -0,0 +1,32 @@
+package iuh.dhktpm14.cnm.chatappmongo.entity;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * bản tóm tắt của tin nhắn cuối cùng, nhúng trong room
+ * được cập nhật mỗi khi gửi tin nhắn để hiển thị danh sách inbox mà không cần truy vấn collection message
+ * content có thể đã bị cắt ngắn
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class LastMessage implements Serializable {
+    private String messageId;
+    private Long seq;
+    private String senderId;
+    private String type;
+    private String content;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date createAt;
+}
@@ -1,8 +1,10 @@
 package iuh.dhktpm14.cnm.chatappmongo.entity;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import iuh.dhktpm14.cnm.chatappmongo.enumvalue.MessageStatus;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -10,6 +12,7 @@ import lombok.NoArgsConstructor;
 import lombok.experimental.Accessors;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -17,6 +20,8 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Document
 @Data
@@ -25,22 +30,58 @@ import java.util.List;
 @NoArgsConstructor
 @Builder
 @JsonInclude(JsonInclude.Include.NON_NULL)
-@CompoundIndexes(@CompoundIndex(background = true, def = "{roomId: 1, createAt: -1}"))
-// do hay tìm kiếm dùng 2 trường này nên tạo index kết hợp trên cả hai trường
+@CompoundIndexes({
+        // do hay tìm kiếm dùng 2 trường này nên tạo index kết hợp trên cả hai trường
+        // thêm _id để phân trang theo cursor (createAt, _id) trong room fanOutOnRead
+        @CompoundIndex(background = true, def = "{roomId: 1, createAt: -1, _id: -1}"),
+        // đồng bộ các thay đổi theo updateAt (SyncService)
+        @CompoundIndex(background = true, def = "{roomId: 1, updateAt: 1, _id: 1}"),
+        // truy vấn tin nhắn theo khoảng seq trong room
+        @CompoundIndex(background = true, def = "{roomId: 1, seq: -1}"),
+        // tìm kiếm nội dung tin nhắn (MessageSearchService)
+        @CompoundIndex(background = true, def = "{searchTokens: 1, roomId: 1, createAt: -1}")
+})
 public class Message implements Serializable {
     @Id
     private String id;
     private String roomId;
     private String senderId;
 
+    /**
+     * số thứ tự của tin nhắn trong room (RoomService.appendMessage), null với tin nhắn cũ
+     */
+    private Long seq;
+
     @CreatedDate
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
     private Date createAt;
+
+    /**
+     * thời điểm thay đổi cuối cùng (tạo mới, gỡ, ghim, bày tỏ cảm xúc),
+     * mọi lệnh update trên message phải set lại field này để SyncService nhận ra thay đổi
+     */
+    @LastModifiedDate
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date updateAt;
     private String type;
     private String content;
     private Boolean pin;
+    /**
+     * chỉ còn ở tin nhắn cũ, cảm xúc mới được lưu trong messageReaction (ReactionService)
+     */
     private List<Reaction> reactions;
+
+    /**
+     * số lượng theo từng loại cảm xúc
+     */
+    private Map<ReactionType, Long> reactionCounts;
     private MessageStatus status;
     private Boolean deleted;
     private String replyId;
+
+    /**
+     * các từ đã bỏ dấu của content dùng để tìm kiếm, chỉ tin nhắn văn bản chưa gỡ mới có
+     */
+    @JsonIgnore
+    private Set<String> searchTokens;
 }
@@ -0,0 +1,42 @@
+package iuh.dhktpm14.cnm.chatappmongo.entity;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * cảm xúc của một user về một tin nhắn, mỗi user chỉ có một document cho mỗi tin nhắn,
+ * bày tỏ cảm xúc lần nữa thì thay thế cảm xúc cũ
+ */
+@Document
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@CompoundIndexes({
+        @CompoundIndex(def = "{messageId: 1, userId: 1}", unique = true, background = true),
+        // danh sách người bày tỏ cảm xúc, mới nhất trước
+        @CompoundIndex(def = "{messageId: 1, reactAt: -1, _id: -1}", background = true)
+})
+public class MessageReaction implements Serializable {
+    @Id
+    private String id;
+    private String messageId;
+    private String userId;
+    private ReactionType type;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
+    private Date reactAt;
+}
@@ -23,7 +23,11 @@ import java.util.Date;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
-@CompoundIndexes(@CompoundIndex(def = "{roomId: 1, userId: 1}", background = true))
+@CompoundIndexes({
+        @CompoundIndex(def = "{roomId: 1, userId: 1}", background = true),
+        // đồng bộ thay đổi đã xem theo readAt (SyncService)
+        @CompoundIndex(def = "{roomId: 1, readAt: 1, _id: 1}", background = true)
+})
 public class ReadTracking implements Serializable {
     @Id
     private String id;
@@ -37,4 +41,9 @@ public class ReadTracking implements Serializable {
     private Date readAt;
 
     private long unReadMessage;
+
+    /**
+     * messageSeq của room tại lần đọc cuối
+     */
+    private long lastReadSeq;
 }
@@ -9,6 +9,8 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.Date;
@@ -20,6 +22,8 @@ import java.util.Set;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
+// các room của một user theo loại (nhóm chung, người cùng nhóm)
+@CompoundIndexes(@CompoundIndex(def = "{'members.userId': 1, type: 1}", background = true))
 public class Room {
     @Id
     private String id;
@@ -32,4 +36,30 @@ public class Room {
     private Set<Member> members;
     private String createByUserId;
     private String imageUrl;
+    private LastMessage lastMessage;
+
+    /**
+     * tăng lên mỗi khi thay đổi thành viên, dùng để RoomCache bỏ qua bản cũ
+     * (không dùng @Version vì save() room cũ chưa có field này sẽ bị coi là insert)
+     */
+    private Long version;
+
+    /**
+     * seq lớn nhất đã cấp cho tin nhắn của room (RoomService.appendMessage),
+     * số tin nhắn chưa đọc = messageSeq - readTracking.lastReadSeq (chat.unread.mode=sequence)
+     */
+    private Long messageSeq;
+
+    /**
+     * room có nhiều thành viên (chat.room.fan-out-on-read-threshold) không tạo inboxMessage cho từng thành viên,
+     * lịch sử tin nhắn được đọc trực tiếp từ collection message theo {roomId, createAt}.
+     * đã bật thì không tắt lại
+     */
+    private Boolean fanOutOnRead;
+
+    /**
+     * số thành viên, được ghi cùng lệnh thay đổi members,
+     * dùng thay cho $size: '$members' để truy vấn có thể dùng index {members.userId, type}
+     */
+    private Integer memberCount;
 }
@@ -11,6 +11,8 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.IndexDirection;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -21,6 +23,7 @@ import org.springframework.security.core.userdetails.UserDetails;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Document
@@ -29,6 +32,8 @@ import java.util.stream.Collectors;
 @AllArgsConstructor
 @NoArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
+// tìm theo searchPrefixes ($all) và sắp xếp theo tên trên cùng index (UserSearchService)
+@CompoundIndexes(@CompoundIndex(def = "{searchPrefixes: 1, searchName: 1, _id: 1}", background = true))
 public class User implements UserDetails {
     @Id
     private String id;
@@ -61,6 +66,18 @@ public class User implements UserDetails {
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Asia/Ho_Chi_Minh")
     private Date lastOnline;
 
+    /**
+     * tiền tố đã bỏ dấu của các từ trong displayName, được tính lại mỗi khi lưu user (UserSearchService)
+     */
+    @JsonIgnore
+    private Set<String> searchPrefixes;
+
+    /**
+     * displayName đã bỏ dấu, dùng để sắp xếp kết quả tìm kiếm theo tên trong truy vấn
+     */
+    @JsonIgnore
+    private String searchName;
+
     @Override
     @JsonIgnore
     public Collection<? extends GrantedAuthority> getAuthorities() {
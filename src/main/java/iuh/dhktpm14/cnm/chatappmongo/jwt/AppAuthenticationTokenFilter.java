@@ -25,23 +25,35 @@ public class AppAuthenticationTokenFilter extends OncePerRequestFilter {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private AuthenticatedUserCache authenticatedUserCache;
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
         String jwt = parseJwt(request);
-        if (jwt != null && jwtUtils.validateJwtToken(jwt)) {
-            String userId = jwtUtils.getUserIdFromJwtToken(jwt);
-
-            Optional<User> findById = userRepository.findById(userId);
-            if (findById.isEmpty())
-                throw new UserNotFoundException();
-            var userDetails = findById.get();
-            var authentication = new UsernamePasswordAuthenticationToken(userDetails, null,
-                    userDetails.getAuthorities());
-            authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
-            var context = SecurityContextHolder.createEmptyContext();
-            context.setAuthentication(authentication);
-            SecurityContextHolder.setContext(context);
+        if (jwt != null) {
+            // thường gặp nhất: token đã được xác thực trước đó, chỉ cần tra cache theo hash của token
+            var userDetails = authenticatedUserCache.get(jwt);
+            if (userDetails == null) {
+                // parse jwt một lần để vừa kiểm tra chữ ký vừa lấy userId và thời gian hết hạn
+                var claims = jwtUtils.parseClaims(jwt);
+                if (claims != null) {
+                    Optional<User> findById = userRepository.findById(claims.getSubject());
+                    if (findById.isEmpty())
+                        throw new UserNotFoundException();
+                    userDetails = findById.get();
+                    authenticatedUserCache.put(jwt, userDetails, claims.getExpiration());
+                }
+            }
+            if (userDetails != null) {
+                var authentication = new UsernamePasswordAuthenticationToken(userDetails, null,
+                        userDetails.getAuthorities());
+                authentication.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+                var context = SecurityContextHolder.createEmptyContext();
+                context.setAuthentication(authentication);
+                SecurityContextHolder.setContext(context);
+            }
         }
 //		filterChain la 1 chuoi cac filter lien tiep nhau
         filterChain.doFilter(request, response);
@@ -0,0 +1,117 @@
+package iuh.dhktpm14.cnm.chatappmongo.jwt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cache accessToken đã xác thực -> user, dùng trong AppAuthenticationTokenFilter
+ * để không phải parse jwt và đọc user từ database ở mỗi request
+ * <p>
+ * key là sha-256 của token (không lưu token gốc), entry hết hạn khi token hết hạn
+ * hoặc sau max-ttl, tùy cái nào đến trước. Khi user được lưu lại thì các entry của user đó bị xóa
+ */
+@Component
+public class AuthenticatedUserCache extends AbstractMongoEventListener<User> {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.cache.authentication.max-size:10000}")
+    private long maxSize;
+
+    @Value("${chat.cache.authentication.max-ttl:5m}")
+    private Duration maxTtl;
+
+    private Cache<String, CachedUser> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, CachedUser>() {
+                    @Override
+                    public long expireAfterCreate(String key, CachedUser value, long currentTime) {
+                        long untilTokenExpired = TimeUnit.MILLISECONDS.toNanos(value.expiresAt - System.currentTimeMillis());
+                        return Math.max(0, Math.min(untilTokenExpired, maxTtl.toNanos()));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, CachedUser value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, CachedUser value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "authentication");
+    }
+
+    /**
+     * @return user đã xác thực với token này, null nếu chưa có trong cache hoặc token đã hết hạn
+     */
+    public User get(String token) {
+        var cached = cache.getIfPresent(digest(token));
+        if (cached == null || cached.expiresAt <= System.currentTimeMillis())
+            return null;
+        return cached.user;
+    }
+
+    public void put(String token, User user, Date expiration) {
+        if (expiration == null)
+            return;
+        cache.put(digest(token), new CachedUser(user, expiration.getTime()));
+    }
+
+    public void evictUser(String userId) {
+        if (userId != null)
+            cache.asMap().values().removeIf(x -> userId.equals(x.user.getId()));
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<User> event) {
+        evictUser(event.getSource().getId());
+    }
+
+    private static String digest(String token) {
+        try {
+            var messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = messageDigest.digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CachedUser {
+        private final User user;
+        private final long expiresAt;
+
+        CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package iuh.dhktpm14.cnm.chatappmongo.jwt;
 
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.MalformedJwtException;
@@ -67,9 +68,17 @@ public class JwtUtils {
     }
 
     public boolean validateJwtToken(String authToken) {
+        return parseClaims(authToken) != null;
+    }
+
+    /**
+     * kiểm tra chữ ký và hạn của token, đồng thời lấy claims chỉ với một lần parse
+     *
+     * @return claims của token, null nếu token không hợp lệ
+     */
+    public Claims parseClaims(String authToken) {
         try {
-            Jwts.parser().setSigningKey(secret).parseClaimsJws(authToken);
-            return true;
+            return Jwts.parser().setSigningKey(secret).parseClaimsJws(authToken).getBody();
         } catch (MalformedJwtException e) {
             logger.error("Invalid JWT token: {}", e.getMessage());
         } catch (ExpiredJwtException e) {
@@ -82,7 +91,7 @@ public class JwtUtils {
             logger.error("Invalid JWT signature: {}", e.getMessage());
         }
 
-        return false;
+        return null;
     }
 
 }
@@ -2,21 +2,30 @@ package iuh.dhktpm14.cnm.chatappmongo.mapper;
 
 import iuh.dhktpm14.cnm.chatappmongo.dto.InboxDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.repository.InboxRepository;
-import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.ReadTrackingRepository;
+import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.UnreadService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Component
 public class InboxMapper {
     @Autowired
-    private MessageRepository messageRepository;
+    private RoomRepository roomRepository;
+
+    @Autowired
+    private UserMapper userMapper;
 
     @Autowired
     private MessageMapper messageMapper;
@@ -30,6 +39,9 @@ public class InboxMapper {
     @Autowired
     private ReadTrackingRepository readTrackingRepository;
 
+    @Autowired
+    private UnreadService unreadService;
+
     public InboxDto toInboxDto(String inboxId) {
         var user = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         if (user == null)
@@ -50,15 +62,25 @@ public class InboxMapper {
             return null;
         var dto = new InboxDto();
         dto.setId(inbox.getId());
-        dto.setRoom(roomMapper.toRoomSummaryDto(inbox.getRoomId()));
+        Optional<Room> roomOptional = roomRepository.findById(inbox.getRoomId());
+        if (roomOptional.isEmpty())
+            return dto;
+        var room = roomOptional.get();
+        dto.setRoom(roomMapper.toRoomSummaryDto(room));
         /*
         lấy số tin nhắn chưa đọc theo roomId và userId
          */
         var readTracking = readTrackingRepository.findByRoomIdAndUserId(inbox.getRoomId(), user.getId());
         if (readTracking != null)
-            dto.setCountNewMessage(readTracking.getUnReadMessage());
-        var lastMessage = messageRepository.getLastMessageOfRoom(inbox.getRoomId());
-        dto.setLastMessage(messageMapper.toMessageDto(lastMessage));
+            dto.setCountNewMessage(unreadService.unreadOf(readTracking, room.getMessageSeq()));
+        // tin nhắn cuối lấy từ lastMessage lưu trong room, không truy vấn collection message
+        var lastMessage = room.getLastMessage();
+        if (lastMessage != null) {
+            List<ReadTracking> readTrackings = readTrackingRepository.findAllByMessageId(lastMessage.getMessageId());
+            Set<String> userIds = readTrackings.stream().map(ReadTracking::getUserId).collect(Collectors.toSet());
+            userIds.add(lastMessage.getSenderId());
+            dto.setLastMessage(messageMapper.toMessageDto(lastMessage, readTrackings, userMapper.toUserProfileDtos(userIds)));
+        }
         return dto;
     }
 }
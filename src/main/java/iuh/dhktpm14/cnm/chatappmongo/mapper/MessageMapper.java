@@ -2,16 +2,27 @@ package iuh.dhktpm14.cnm.chatappmongo.mapper;
 
 import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
 import iuh.dhktpm14.cnm.chatappmongo.dto.ReadByDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
 import iuh.dhktpm14.cnm.chatappmongo.dto.chat.MessageToClient;
+import iuh.dhktpm14.cnm.chatappmongo.entity.LastMessage;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
 import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
 import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.ReadTrackingRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Component
@@ -44,6 +55,7 @@ public class MessageMapper {
             return null;
         var dto = new MessageDto();
         dto.setId(message.getId());
+        dto.setSeq(message.getSeq());
         if (message.getSenderId() != null)
             dto.setSender(userMapper.toUserProfileDto(message.getSenderId()));
         dto.setCreateAt(message.getCreateAt());
@@ -53,6 +65,7 @@ public class MessageMapper {
         dto.setDeleted(message.getDeleted());
         dto.setStatus(message.getStatus());
         dto.setReactions(message.getReactions());
+        dto.setReactionCounts(reactionCountsOf(message));
         if (message.getReplyId() != null) {
             Optional<Message> optional = messageRepository.findById(message.getReplyId());
             optional.ifPresent(value -> dto.setReply(toMessageDto(value)));
@@ -66,11 +79,117 @@ public class MessageMapper {
         return dto;
     }
 
+    /**
+     * chuyển một trang message sang messageDto theo lô, số truy vấn cố định không phụ thuộc số tin nhắn:
+     * 1 truy vấn $in lấy các tin nhắn được trả lời, 1 truy vấn $in lấy readTracking
+     * và 1 truy vấn $in lấy các user chưa có trong cache
+     * <p>
+     * tin nhắn được trả lời chỉ lấy một cấp (không lấy tiếp reply của reply)
+     */
+    public List<MessageDto> toMessageDtos(List<Message> messages) {
+        if (messages == null || messages.isEmpty())
+            return new ArrayList<>();
+
+        Set<String> replyIds = messages.stream().map(Message::getReplyId)
+                .filter(Objects::nonNull).collect(Collectors.toSet());
+        Map<String, Message> replies = new HashMap<>();
+        if (! replyIds.isEmpty())
+            messageRepository.findAllById(replyIds).forEach(x -> replies.put(x.getId(), x));
+
+        List<String> messageIds = new ArrayList<>();
+        messages.forEach(x -> messageIds.add(x.getId()));
+        messageIds.addAll(replies.keySet());
+        Map<String, List<ReadTracking>> readTrackings = readTrackingRepository.findAllByMessageIdIn(messageIds).stream()
+                .collect(Collectors.groupingBy(ReadTracking::getMessageId));
+
+        Set<String> userIds = new HashSet<>();
+        messages.forEach(x -> userIds.add(x.getSenderId()));
+        replies.values().forEach(x -> userIds.add(x.getSenderId()));
+        readTrackings.values().forEach(list -> list.forEach(x -> userIds.add(x.getUserId())));
+        Map<String, UserProfileDto> users = userMapper.toUserProfileDtos(userIds);
+
+        List<MessageDto> result = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            var dto = toMessageDto(message, readTrackings, users);
+            if (message.getReplyId() != null && replies.containsKey(message.getReplyId()))
+                dto.setReply(toMessageDto(replies.get(message.getReplyId()), readTrackings, users));
+            result.add(dto);
+        }
+        return result;
+    }
+
+    /**
+     * chuyển message sang dto với readTracking và profile user đã lấy sẵn, không truy vấn thêm
+     */
+    public MessageDto toMessageDto(Message message, Map<String, List<ReadTracking>> readTrackings,
+                                   Map<String, UserProfileDto> users) {
+        var dto = new MessageDto();
+        dto.setId(message.getId());
+        dto.setSeq(message.getSeq());
+        if (message.getSenderId() != null)
+            dto.setSender(users.get(message.getSenderId()));
+        dto.setCreateAt(message.getCreateAt());
+        dto.setType(message.getType());
+        dto.setContent(message.getContent());
+        dto.setPin(message.getPin());
+        dto.setDeleted(message.getDeleted());
+        dto.setStatus(message.getStatus());
+        dto.setReactions(message.getReactions());
+        dto.setReactionCounts(reactionCountsOf(message));
+        List<ReadByDto> readBy = readTrackings.getOrDefault(message.getId(), Collections.emptyList()).stream()
+                .map(x -> readByMapper.toReadByDto(x, users.get(x.getUserId())))
+                .collect(Collectors.toList());
+        dto.setReadbyes(readBy);
+        return dto;
+    }
+
+    /**
+     * chuyển lastMessage (bản tóm tắt lưu trong room) sang dto, không truy vấn collection message
+     */
+    public MessageDto toMessageDto(LastMessage lastMessage, List<ReadTracking> readTrackings,
+                                   Map<String, UserProfileDto> users) {
+        if (lastMessage == null)
+            return null;
+        var dto = new MessageDto();
+        dto.setId(lastMessage.getMessageId());
+        dto.setSeq(lastMessage.getSeq());
+        if (lastMessage.getSenderId() != null)
+            dto.setSender(users.get(lastMessage.getSenderId()));
+        dto.setCreateAt(lastMessage.getCreateAt());
+        dto.setType(lastMessage.getType());
+        dto.setContent(lastMessage.getContent());
+        dto.setReadbyes(readTrackings.stream()
+                .map(x -> readByMapper.toReadByDto(x, users.get(x.getUserId())))
+                .collect(Collectors.toList()));
+        return dto;
+    }
+
+    /**
+     * số lượng theo từng loại cảm xúc, tin nhắn cũ chưa có reactionCounts thì đếm từ mảng reactions
+     * (mỗi user chỉ tính cảm xúc cuối cùng)
+     */
+    private static Map<ReactionType, Long> reactionCountsOf(Message message) {
+        Map<ReactionType, Long> counts = new EnumMap<>(ReactionType.class);
+        if (message.getReactionCounts() != null)
+            message.getReactionCounts().forEach((type, count) -> {
+                if (type != null && count != null && count > 0)
+                    counts.put(type, count);
+            });
+        else if (message.getReactions() != null) {
+            Map<String, ReactionType> lastOfUser = new HashMap<>();
+            message.getReactions().stream().filter(x -> x.getReactByUserId() != null && x.getType() != null)
+                    .forEach(x -> lastOfUser.put(x.getReactByUserId(), x.getType()));
+            lastOfUser.values().forEach(type -> counts.merge(type, 1L, Long::sum));
+        }
+        return counts.isEmpty() ? null : counts;
+    }
+
     public MessageToClient toMessageToClient(Message message) {
         if (message == null)
             return null;
         var dto = new MessageToClient();
         dto.setId(message.getId());
+        dto.setSeq(message.getSeq());
         if (message.getSenderId() != null)
             dto.setSender(userMapper.toUserProfileDto(message.getSenderId()));
         dto.setCreateAt(message.getCreateAt());
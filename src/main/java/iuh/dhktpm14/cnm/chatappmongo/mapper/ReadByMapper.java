@@ -1,6 +1,7 @@
 package iuh.dhktpm14.cnm.chatappmongo.mapper;
 
 import iuh.dhktpm14.cnm.chatappmongo.dto.ReadByDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -19,4 +20,16 @@ public class ReadByMapper {
         dto.setReadByUser(userMapper.toUserProfileDto(readTracking.getUserId()));
         return dto;
     }
+
+    /**
+     * dùng khi đã lấy sẵn profile của người đọc (ví dụ lấy theo lô)
+     */
+    public ReadByDto toReadByDto(ReadTracking readTracking, UserProfileDto readByUser) {
+        if (readTracking == null)
+            return null;
+        var dto = new ReadByDto();
+        dto.setReadAt(readTracking.getReadAt());
+        dto.setReadByUser(readByUser);
+        return dto;
+    }
 }
@@ -9,12 +9,11 @@ import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
-import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
-import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -22,7 +21,7 @@ import java.util.stream.Collectors;
 public class RoomMapper {
 
     @Autowired
-    private RoomRepository roomRepository;
+    private RoomCache roomCache;
 
     @Autowired
     private UserMapper userMapper;
@@ -36,10 +35,7 @@ public class RoomMapper {
             throw new UnAuthenticateException();
         if (roomId == null)
             return null;
-        Optional<Room> roomOptional = roomRepository.findById(roomId);
-        if (roomOptional.isEmpty())
-            return null;
-        return toRoomSummaryDto(roomOptional.get());
+        return toRoomSummaryDto(roomCache.getRoom(roomId));
     }
 
     public Object toRoomSummaryDto(Room room) {
@@ -67,6 +63,8 @@ public class RoomMapper {
             group.setType(room.getType());
             if (room.getMembers() != null)
                 group.setNumOfMembers(room.getMembers().size());
+            else
+                group.setNumOfMembers(room.getMemberCount());
             return group;
         }
     }
@@ -77,10 +75,7 @@ public class RoomMapper {
             throw new UnAuthenticateException();
         if (roomId == null)
             return null;
-        Optional<Room> roomOptional = roomRepository.findById(roomId);
-        if (roomOptional.isEmpty())
-            return null;
-        return toRoomDetailDto(roomOptional.get());
+        return toRoomDetailDto(roomCache.getRoom(roomId));
     }
 
     public Object toRoomDetailDto(Room room) {
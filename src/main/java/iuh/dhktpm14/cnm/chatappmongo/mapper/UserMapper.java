@@ -4,10 +4,19 @@ import iuh.dhktpm14.cnm.chatappmongo.dto.UserDetailDto;
 import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.PresenceService;
+import iuh.dhktpm14.cnm.chatappmongo.service.UserProfileCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Component
 public class UserMapper {
@@ -15,13 +24,59 @@ public class UserMapper {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private UserProfileCache userProfileCache;
+
+    @Autowired
+    private PresenceService presenceService;
+
+    /**
+     * lấy profile theo userId, ưu tiên lấy trong cache, trạng thái online lấy từ PresenceService
+     */
     public UserProfileDto toUserProfileDto(String userId) {
         if (userId == null)
             return null;
-        Optional<User> user = userRepository.findById(userId);
-        if (user.isEmpty()) return null;
+        return withPresence(userProfileCache.get(userId, id -> {
+            Optional<User> user = userRepository.findById(id);
+            return user.map(this::toUserProfileDto).orElse(null);
+        }));
+    }
 
-        return toUserProfileDto(user.get());
+    /**
+     * lấy profile của nhiều user, những user chưa có trong cache được lấy bằng một truy vấn $in
+     *
+     * @return map userId -> profile, user không tồn tại thì không có trong map
+     */
+    public Map<String, UserProfileDto> toUserProfileDtos(Collection<String> userIds) {
+        Set<String> ids = userIds.stream().filter(Objects::nonNull).collect(Collectors.toSet());
+        if (ids.isEmpty())
+            return new HashMap<>();
+        Map<String, UserProfileDto> result = userProfileCache.getAll(ids, missing ->
+                userRepository.findByIdIn(new ArrayList<>(missing)).stream()
+                        .collect(Collectors.toMap(User::getId, this::toUserProfileDto)));
+        Map<String, UserProfileDto> withPresence = new HashMap<>(result.size());
+        result.forEach((id, dto) -> withPresence.put(id, withPresence(dto)));
+        return withPresence;
+    }
+
+    /**
+     * dto trong cache dùng chung nên tạo bản sao khi cần thay trạng thái online
+     * bằng trạng thái trong bộ nhớ (có thể chưa được ghi vào database)
+     */
+    private UserProfileDto withPresence(UserProfileDto dto) {
+        if (dto == null)
+            return null;
+        var status = presenceService.getOnlineStatus(dto.getId());
+        if (status == null || (status.equals(dto.getOnlineStatus())
+                && Objects.equals(presenceService.getLastOnline(dto.getId()), dto.getLastOnline())))
+            return dto;
+        var copy = new UserProfileDto();
+        copy.setId(dto.getId());
+        copy.setDisplayName(dto.getDisplayName());
+        copy.setImageUrl(dto.getImageUrl());
+        copy.setOnlineStatus(status);
+        copy.setLastOnline(presenceService.getLastOnline(dto.getId()));
+        return copy;
     }
 
     public UserProfileDto toUserProfileDto(User user) {
@@ -51,8 +106,14 @@ public class UserMapper {
         dto.setPhoneNumber(user.getPhoneNumber());
         dto.setRoles(user.getRoles());
         dto.setUsername(user.getUsername());
-        dto.setOnlineStatus(user.getOnlineStatus());
-        dto.setLastOnline(user.getLastOnline());
+        var status = presenceService.getOnlineStatus(user.getId());
+        if (status == null) {
+            dto.setOnlineStatus(user.getOnlineStatus());
+            dto.setLastOnline(user.getLastOnline());
+        } else {
+            dto.setOnlineStatus(status);
+            dto.setLastOnline(presenceService.getLastOnline(user.getId()));
+        }
         return dto;
     }
 
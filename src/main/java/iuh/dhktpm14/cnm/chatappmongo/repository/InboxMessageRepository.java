@@ -7,6 +7,8 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Date;
+
 @Repository
 public interface InboxMessageRepository extends MongoRepository<InboxMessage, String> {
 
@@ -14,15 +16,11 @@ public interface InboxMessageRepository extends MongoRepository<InboxMessage, St
      * lấy ra tất cả InboxMessage theo inboxId, mục đích là để lấy ra danh sách messageId của inboxId này
      * sau đó lấy ra tất cả message trong collection message mà có id nằm trong danh sách id vừa tìm ở trên
      * hàm này không được gọi trực tiếp mà được gọi bởi hàm khác
+     * <p>
+     * chỉ lấy tin nhắn sau clearedBefore của inbox, inboxMessage cũ hơn chờ InboxCompactor xóa
      */
-    @Query(value = "{inboxId: ?0}", sort = "{'messageCreateAt': -1}")
-    Page<InboxMessage> getAllInboxMessageOfInbox(String inboxId, Pageable pageable);
-
-    /**
-     * xóa inbox theo inboxId
-     */
-    @Query(value = "{inboxId: ?0}", delete = true)
-    void deleteAllMessageOfInbox(String inboxId);
+    @Query(value = "{inboxId: ?0, messageCreateAt: {$gt: ?1}}", sort = "{'messageCreateAt': -1}")
+    Page<InboxMessage> getAllInboxMessageOfInbox(String inboxId, Date clearedBefore, Pageable pageable);
 
     /**
      * kiểm tra xem tin nhắn này có thuộc inboxId hay không
@@ -0,0 +1,24 @@
+package iuh.dhktpm14.cnm.chatappmongo.repository;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.MessageReaction;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MessageReactionRepository extends MongoRepository<MessageReaction, String> {
+
+    /**
+     * lấy danh sách người bày tỏ cảm xúc về tin nhắn, mới nhất trước
+     */
+    Page<MessageReaction> findAllByMessageIdOrderByReactAtDescIdDesc(String messageId, Pageable pageable);
+
+    /**
+     * lấy danh sách người bày tỏ một loại cảm xúc về tin nhắn
+     */
+    Page<MessageReaction> findAllByMessageIdAndTypeOrderByReactAtDescIdDesc(String messageId, ReactionType type,
+                                                                          Pageable pageable);
+
+}
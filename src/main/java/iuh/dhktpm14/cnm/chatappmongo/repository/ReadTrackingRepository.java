@@ -4,6 +4,7 @@ import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -21,4 +22,9 @@ public interface ReadTrackingRepository extends MongoRepository<ReadTracking, St
      */
     List<ReadTracking> findAllByMessageId(String messageId);
 
+    /**
+     * lấy danh sách readTracking của nhiều tin nhắn trong một truy vấn $in
+     */
+    List<ReadTracking> findAllByMessageIdIn(Collection<String> messageIds);
+
 }
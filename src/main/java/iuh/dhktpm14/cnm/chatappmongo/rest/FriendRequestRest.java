@@ -3,14 +3,13 @@ package iuh.dhktpm14.cnm.chatappmongo.rest;
 import io.swagger.annotations.ApiOperation;
 import iuh.dhktpm14.cnm.chatappmongo.dto.FriendRequestReceivedDto;
 import iuh.dhktpm14.cnm.chatappmongo.dto.FriendRequestSentDto;
-import iuh.dhktpm14.cnm.chatappmongo.entity.Friend;
 import iuh.dhktpm14.cnm.chatappmongo.entity.FriendRequest;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.FriendMapper;
-import iuh.dhktpm14.cnm.chatappmongo.repository.FriendRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.FriendRequestRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.FriendGraphService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
@@ -40,7 +39,7 @@ public class FriendRequestRest {
     private FriendRequestRepository friendRequestRepository;
 
     @Autowired
-    private FriendRepository friendRepository;
+    private FriendGraphService friendGraphService;
 
     @Autowired
     private UserRepository userRepository;
@@ -92,7 +91,7 @@ public class FriendRequestRest {
         if (! userRepository.existsById(toId))
             return ResponseEntity.badRequest().build();
         // hai người đã là bạn bè
-        if (friendRepository.isFriend(user.getId(), toId))
+        if (friendGraphService.isFriend(user.getId(), toId))
             return ResponseEntity.badRequest().build();
         // chưa có lời mời kết bạn nào trong database
         if (! friendRequestRepository.isSent(user.getId(), toId) && ! friendRequestRepository.isReceived(user.getId(), toId)) {
@@ -117,7 +116,7 @@ public class FriendRequestRest {
         if (user == null)
             throw new UnAuthenticateException();
         // hai người đã là bạn bè
-        if (friendRepository.isFriend(user.getId(), idToAccept))
+        if (friendGraphService.isFriend(user.getId(), idToAccept))
             return ResponseEntity.badRequest().build();
         // người không tồn tại trong database
         if (! userRepository.existsById(idToAccept))
@@ -126,8 +125,7 @@ public class FriendRequestRest {
         if (friendRequestRepository.isReceived(user.getId(), idToAccept)) {
             friendRequestRepository.deleteFriendRequest(idToAccept, user.getId());
             // lưu 2 record trong database
-            friendRepository.save(Friend.builder().userId(user.getId()).friendId(idToAccept).build());
-            friendRepository.save(Friend.builder().userId(idToAccept).friendId(user.getId()).build());
+            friendGraphService.addFriendship(user.getId(), idToAccept);
 
             return ResponseEntity.ok().build();
         }
@@ -2,12 +2,17 @@ package iuh.dhktpm14.cnm.chatappmongo.rest;
 
 import io.swagger.annotations.ApiOperation;
 import iuh.dhktpm14.cnm.chatappmongo.dto.FriendDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.FriendSuggestionDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Friend;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.FriendMapper;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
 import iuh.dhktpm14.cnm.chatappmongo.repository.FriendRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.FriendGraphService;
+import iuh.dhktpm14.cnm.chatappmongo.service.FriendSuggestionService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
@@ -20,10 +25,13 @@ import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import springfox.documentation.annotations.ApiIgnore;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 @RestController
@@ -31,6 +39,8 @@ import java.util.stream.Collectors;
 @CrossOrigin("${spring.security.cross_origin}")
 public class FriendRest {
 
+    private static final int MAX_MUTUAL_COUNT_IDS = 100;
+
     @Autowired
     private FriendRepository friendRepository;
 
@@ -40,6 +50,15 @@ public class FriendRest {
     @Autowired
     private FriendMapper friendMapper;
 
+    @Autowired
+    private FriendGraphService friendGraphService;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private FriendSuggestionService friendSuggestionService;
+
     /**
      * lấy danh sách bạn bè của người dùng hiện tại đã đăng nhập
      */
@@ -70,13 +89,81 @@ public class FriendRest {
         if (! userRepository.existsById(deleteId))
             return ResponseEntity.badRequest().build();
         // chỉ xóa khi hai người là bạn bè
-        if (friendRepository.isFriend(user.getId(), deleteId)) {
-            friendRepository.deleteFriend(user.getId(), deleteId);
+        if (friendGraphService.isFriend(user.getId(), deleteId)) {
+            friendGraphService.removeFriendship(user.getId(), deleteId);
             return ResponseEntity.ok().build();
         }
         return ResponseEntity.badRequest().build();
     }
 
+    /**
+     * lấy danh sách bạn chung với một người khác, xếp theo id
+     */
+    @GetMapping("/mutual/{otherId}")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Lấy danh sách bạn chung với một người khác")
+    public ResponseEntity<?> getMutualFriends(@ApiIgnore @AuthenticationPrincipal User user, @PathVariable String otherId,
+                                              Pageable pageable) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        if (otherId.equals(user.getId()))
+            return ResponseEntity.badRequest().build();
+        List<String> mutualIds = friendGraphService.getMutualFriendIds(user.getId(), otherId);
+        List<String> pageIds = mutualIds;
+        if (pageable.isPaged()) {
+            int from = (int) Math.min(pageable.getOffset(), mutualIds.size());
+            pageIds = mutualIds.subList(from, Math.min(from + pageable.getPageSize(), mutualIds.size()));
+        }
+        // profile của cả trang lấy bằng một truy vấn $in
+        Map<String, UserProfileDto> profiles = userMapper.toUserProfileDtos(pageIds);
+        List<UserProfileDto> dto = pageIds.stream()
+                .map(profiles::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(new PageImpl<>(dto, pageable, mutualIds.size()));
+    }
+
+    /**
+     * số bạn chung với từng người trong danh sách (hiển thị "N bạn chung")
+     */
+    @GetMapping("/mutual-count")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Đếm số bạn chung với nhiều người")
+    public ResponseEntity<?> countMutualFriends(@ApiIgnore @AuthenticationPrincipal User user,
+                                                @RequestParam List<String> userIds) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        if (userIds.size() > MAX_MUTUAL_COUNT_IDS)
+            return ResponseEntity.badRequest().build();
+        return ResponseEntity.ok(friendSuggestionService.countMutualFriends(user.getId(), userIds));
+    }
+
+    /**
+     * gợi ý kết bạn: bạn của bạn bè và người cùng nhóm, người có nhiều bạn chung, nhóm chung hơn được xếp trước
+     */
+    @GetMapping("/suggestions")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Gợi ý kết bạn")
+    public ResponseEntity<?> getFriendSuggestions(@ApiIgnore @AuthenticationPrincipal User user,
+                                                  @RequestParam(defaultValue = "20") int size) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        List<FriendSuggestionService.Suggestion> suggestions = friendSuggestionService.suggest(user.getId(), size);
+        Map<String, UserProfileDto> profiles = userMapper.toUserProfileDtos(suggestions.stream()
+                .map(FriendSuggestionService.Suggestion::getUserId).collect(Collectors.toList()));
+        List<FriendSuggestionDto> dto = suggestions.stream()
+                .filter(x -> profiles.containsKey(x.getUserId()))
+                .map(x -> {
+                    var suggestion = new FriendSuggestionDto();
+                    suggestion.setUser(profiles.get(x.getUserId()));
+                    suggestion.setMutualFriends(x.getMutualFriends());
+                    suggestion.setSharedGroups(x.getSharedGroups());
+                    return suggestion;
+                })
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(dto);
+    }
+
     /**
      *
      */
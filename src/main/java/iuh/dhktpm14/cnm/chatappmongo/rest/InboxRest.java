@@ -3,14 +3,15 @@ package iuh.dhktpm14.cnm.chatappmongo.rest;
 import io.swagger.annotations.ApiOperation;
 import iuh.dhktpm14.cnm.chatappmongo.dto.InboxDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
-import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.InboxMapper;
 import iuh.dhktpm14.cnm.chatappmongo.payload.MessageResponse;
-import iuh.dhktpm14.cnm.chatappmongo.repository.InboxMessageRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.InboxRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.InboxService;
+import iuh.dhktpm14.cnm.chatappmongo.service.UnreadService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
@@ -29,6 +30,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import springfox.documentation.annotations.ApiIgnore;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -41,15 +43,25 @@ public class InboxRest {
     @Autowired
     private InboxRepository inboxRepository;
 
-    @Autowired
-    private InboxMessageRepository inboxMessageRepository;
-
     @Autowired
     private InboxMapper inboxMapper;
 
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private InboxService inboxService;
+
+    @Autowired
+    private UnreadService unreadService;
+
+    /**
+     * aggregation: lấy cả trang inbox bằng một aggregation, sắp xếp theo tin nhắn cuối
+     * legacy: lấy từng inbox qua InboxMapper
+     */
+    @Value("${chat.inbox.list-mode:aggregation}")
+    private String listMode;
+
     /**
      * lấy tất cả inbox của người dùng hiện tại
      */
@@ -59,6 +71,8 @@ public class InboxRest {
     public ResponseEntity<?> getAllInboxOfCurrentUser(@ApiIgnore @AuthenticationPrincipal User user, Pageable pageable) {
         if (user == null)
             throw new UnAuthenticateException();
+        if ("aggregation".equals(listMode))
+            return ResponseEntity.ok(inboxService.getAllInboxOfUser(user.getId(), pageable));
         Page<Inbox> inboxPage = inboxRepository.getAllInboxOfUser(user.getId(), pageable);
         return ResponseEntity.ok(toInboxDto(inboxPage));
     }
@@ -80,10 +94,15 @@ public class InboxRest {
             var criteria = Criteria.where("_id").is(inboxId);
             var update = new Update();
             update.set("empty", true);
+            /*
+            không hiển thị các tin nhắn gửi trước thời điểm xóa, chỉ cập nhật một document,
+            inboxMessage cũ được InboxCompactor xóa dần sau, không xóa trong collection message
+             */
+            update.set("clearedBefore", new Date());
+            // room fanOutOnRead vẫn còn inboxMessage được tạo trước khi chuyển chế độ
+            update.set("pendingCompaction", true);
             // cập nhật thuộc tính empty=true
             mongoTemplate.updateFirst(Query.query(criteria), update, Inbox.class);
-            // xóa tất cả message liên kết với inbox này, không xóa trong collection message
-            inboxMessageRepository.deleteAllMessageOfInbox(inbox.getId());
             // reset số tin nhắn chưa đọc thành 0
             resetUnreadMessageToZero(inbox.getRoomId(), user.getId());
             return ResponseEntity.ok().build();
@@ -103,11 +122,7 @@ public class InboxRest {
     }
 
     private void resetUnreadMessageToZero(String roomId, String userId) {
-        var criteria = Criteria.where("roomId").is(roomId)
-                .and("userId").is(userId);
-        var update = new Update();
-        update.set("unReadMessage", 0);
-        mongoTemplate.updateFirst(Query.query(criteria), update, ReadTracking.class);
+        unreadService.resetUnread(roomId, userId);
     }
 
 }
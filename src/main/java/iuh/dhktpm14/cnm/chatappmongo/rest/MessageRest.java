@@ -1,6 +1,7 @@
 package iuh.dhktpm14.cnm.chatappmongo.rest;
 
 import io.swagger.annotations.ApiOperation;
+import iuh.dhktpm14.cnm.chatappmongo.chat.ChatEventPublisher;
 import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
 import iuh.dhktpm14.cnm.chatappmongo.dto.ReadByDto;
 import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
@@ -8,16 +9,23 @@ import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
 import iuh.dhktpm14.cnm.chatappmongo.entity.Reaction;
 import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
 import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.MessageNotFoundException;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.MyException;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
-import iuh.dhktpm14.cnm.chatappmongo.mapper.ReactionMapper;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.ReadByMapper;
 import iuh.dhktpm14.cnm.chatappmongo.payload.MessageResponse;
 import iuh.dhktpm14.cnm.chatappmongo.repository.InboxMessageRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.InboxRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.ReadTrackingRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.MessageHistoryService;
+import iuh.dhktpm14.cnm.chatappmongo.service.MessageSearchService;
+import iuh.dhktpm14.cnm.chatappmongo.service.ReactionService;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomService;
+import iuh.dhktpm14.cnm.chatappmongo.service.SyncService;
+import iuh.dhktpm14.cnm.chatappmongo.service.UnreadService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
@@ -36,6 +44,7 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import springfox.documentation.annotations.ApiIgnore;
 
@@ -69,15 +78,33 @@ public class MessageRest {
     @Autowired
     private ReadByMapper readByMapper;
 
-    @Autowired
-    private ReactionMapper reactionMapper;
-
     @Autowired
     private MongoTemplate mongoTemplate;
 
     @Autowired
     private ReadTrackingRepository readTrackingRepository;
 
+    @Autowired
+    private RoomService roomService;
+
+    @Autowired
+    private MessageHistoryService messageHistoryService;
+
+    @Autowired
+    private SyncService syncService;
+
+    @Autowired
+    private UnreadService unreadService;
+
+    @Autowired
+    private ReactionService reactionService;
+
+    @Autowired
+    private MessageSearchService messageSearchService;
+
+    @Autowired
+    private ChatEventPublisher chatEventPublisher;
+
     /**
      * lấy tất cả tin nhắn của inboxId
      */
@@ -95,12 +122,20 @@ public class MessageRest {
                 cập nhật số tin nhắn mới bằng 0, và set tin nhắn đã đọc là tin nhắn mới nhất
                  */
                 updateReadTracking(user.getId(), inbox.getRoomId());
+                // room fanOutOnRead không có inboxMessage, lấy trực tiếp từ collection message
+                if (roomService.isFanOutOnRead(inbox.getRoomId())) {
+                    Page<Message> messagePage = messageHistoryService.getRoomMessagePage(inbox, pageable);
+                    return ResponseEntity.ok(toMessageDto(messagePage, messagePage));
+                }
                 /*
                  lấy ra danh sách messageIds của inbox này, phân trang và sắp xếp theo messageCreateAt: -1
                  sau lệnh này nếu k chỉ định size thì mặc định chỉ lấy 20 document
                  tức là số lượng document là đã bị giới hạn
+                 tin nhắn trước clearedBefore (đã xóa cuộc trò chuyện) không được lấy
                  */
-                Page<InboxMessage> inboxMessages = inboxMessageRepository.getAllInboxMessageOfInbox(inboxId, pageable);
+                var clearedBefore = inbox.getClearedBefore() == null ? new Date(0) : inbox.getClearedBefore();
+                Page<InboxMessage> inboxMessages = inboxMessageRepository.getAllInboxMessageOfInbox(inboxId,
+                        clearedBefore, pageable);
                 if (inboxMessages.isEmpty())
                     return ResponseEntity.ok(new PageImpl<>(new ArrayList<>(), pageable, inboxMessages.getTotalElements()));
                 List<String> messageIds = inboxMessages.getContent().stream().map(InboxMessage::getMessageId)
@@ -121,21 +156,114 @@ public class MessageRest {
         return ResponseEntity.badRequest().build();
     }
 
+    /**
+     * lấy tin nhắn của inboxId theo cursor, mỗi lần lấy size tin nhắn trước cursor
+     * lần đầu không truyền cursor để lấy các tin nhắn mới nhất, các lần sau truyền nextCursor của trang trước
+     */
+    @GetMapping("/inbox/{inboxId}/history")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Lấy tin nhắn của một cuộc trò chuyện theo cursor")
+    public ResponseEntity<?> getMessageHistoryOfInbox(@PathVariable String inboxId,
+                                                      @RequestParam(required = false) String cursor,
+                                                      @RequestParam(defaultValue = "20") int size,
+                                                      @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        // kiểm tra xem inboxId có thuộc về user hiện tại hay không
+        var inbox = inboxRepository.findByIdAndOfUserId(inboxId, user.getId());
+        if (inbox == null || inbox.isEmpty())
+            return ResponseEntity.badRequest().build();
+        // chỉ cập nhật đã đọc khi lấy trang mới nhất
+        if (cursor == null)
+            updateReadTracking(user.getId(), inbox.getRoomId());
+        return ResponseEntity.ok(messageHistoryService.getMessagesBefore(inbox, cursor, size));
+    }
+
+    /**
+     * lấy các tin nhắn có seq lớn hơn afterSeq theo thứ tự seq tăng dần,
+     * client dùng seq của tin nhắn cuối đã nhận để lấy các tin nhắn bị thiếu
+     */
+    @GetMapping("/inbox/{inboxId}/after-seq")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Lấy tin nhắn của một cuộc trò chuyện sau một seq")
+    public ResponseEntity<?> getMessagesAfterSeq(@PathVariable String inboxId,
+                                                 @RequestParam long afterSeq,
+                                                 @RequestParam(defaultValue = "20") int size,
+                                                 @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        var inbox = inboxRepository.findByIdAndOfUserId(inboxId, user.getId());
+        if (inbox == null || inbox.isEmpty())
+            return ResponseEntity.badRequest().build();
+        return ResponseEntity.ok(messageHistoryService.getMessagesAfterSeq(inbox, afterSeq, size));
+    }
+
+    /**
+     * tìm tin nhắn chứa tất cả các từ trong keyword (không phân biệt dấu, hoa thường), từ mới đến cũ,
+     * có inboxId thì chỉ tìm trong cuộc trò chuyện đó
+     */
+    @GetMapping("/search")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Tìm kiếm tin nhắn theo nội dung")
+    public ResponseEntity<?> search(@RequestParam String keyword,
+                                    @RequestParam(required = false) String inboxId,
+                                    @RequestParam(required = false) String cursor,
+                                    @RequestParam(defaultValue = "20") int size,
+                                    @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        String roomId = null;
+        if (inboxId != null) {
+            var inbox = inboxRepository.findByIdAndOfUserId(inboxId, user.getId());
+            if (inbox == null)
+                return ResponseEntity.badRequest().build();
+            roomId = inbox.getRoomId();
+        }
+        return ResponseEntity.ok(messageSearchService.search(user.getId(), keyword, roomId, cursor, size));
+    }
+
+    /**
+     * đồng bộ thay đổi của một inbox kể từ cursor: tin nhắn mới, tin nhắn bị gỡ/ghim/bày tỏ cảm xúc và thay đổi đã xem
+     * lần đầu không có cursor thì truyền since (epoch millis), hasMore=true thì gọi tiếp với cursor mới
+     */
+    @GetMapping("/inbox/{inboxId}/sync")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Đồng bộ thay đổi của một cuộc trò chuyện kể từ lần đồng bộ trước")
+    public ResponseEntity<?> syncInbox(@PathVariable String inboxId,
+                                       @RequestParam(required = false) String cursor,
+                                       @RequestParam(required = false) Long since,
+                                       @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        var inbox = inboxRepository.findByIdAndOfUserId(inboxId, user.getId());
+        if (inbox == null)
+            return ResponseEntity.badRequest().build();
+        return ResponseEntity.ok(syncService.syncInbox(inbox, cursor, since));
+    }
+
+    /**
+     * đồng bộ thay đổi của tất cả cuộc trò chuyện của user hiện tại kể từ cursor
+     */
+    @GetMapping("/sync")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Đồng bộ thay đổi của tất cả cuộc trò chuyện kể từ lần đồng bộ trước")
+    public ResponseEntity<?> syncAll(@RequestParam(required = false) String cursor,
+                                     @RequestParam(required = false) Long since,
+                                     @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        return ResponseEntity.ok(syncService.syncAll(user.getId(), cursor, since));
+    }
+
     /**
      * lấy danh sách tin nhắn chưa đọc của userId trong roomId
      * và cập nhật thành đã đọc
      */
     private void updateReadTracking(String userId, String roomId) {
-        var readTracking = readTrackingRepository.findByRoomIdAndUserId(roomId, userId);
-        if (readTracking != null && readTracking.getUnReadMessage() != 0) {
-            var lastMessage = messageRepository.getLastMessageOfRoom(roomId);
-            var criteria = Criteria.where("roomId").is(roomId).and("userId").is(userId);
-            var update = new Update();
-            update.set("messageId", lastMessage.getId());
-            update.set("readAt", new Date());
-            update.set("unReadMessage", 0);
-            mongoTemplate.updateFirst(Query.query(criteria), update, ReadTracking.class);
-        }
+        var readTracking = unreadService.markRead(roomId, userId);
+        // gửi sự kiện đã xem đến các thành viên, được gom theo room trong ChatEventPublisher
+        if (readTracking != null)
+            chatEventPublisher.publishRead(roomId, readTracking.getMessageId(), userId, readTracking.getReadAt());
     }
 
     /**
@@ -152,13 +280,10 @@ public class MessageRest {
         var inbox = inboxRepository.findByIdAndOfUserId(inboxId, user.getId());
         if (inbox == null)
             return ResponseEntity.badRequest().build();
-        if (inboxMessageRepository.existsByInboxIdAndMessageId(inbox.getId(), messageId)) {
-            Optional<Message> messageOptional = messageRepository.findById(messageId);
-            if (messageOptional.isEmpty())
-                throw new MessageNotFoundException();
-            return ResponseEntity.ok(messageOptional.get());
-        }
-        return ResponseEntity.badRequest().build();
+        var message = messageHistoryService.findVisible(inbox, messageId);
+        if (message == null)
+            return ResponseEntity.badRequest().build();
+        return ResponseEntity.ok(message);
     }
 
     /**
@@ -180,14 +305,18 @@ public class MessageRest {
             var update = new Update();
             update.set("content", "Đã xóa");
             update.set("deleted", true);
+            update.unset("searchTokens");
+            update.set("updateAt", new Date());
             mongoTemplate.updateFirst(Query.query(criteria), update, Message.class);
+            roomService.updateLastMessageContent(message.getRoomId(), messageId, "Đã xóa");
+            chatEventPublisher.publishDelete(message.getRoomId(), messageId, "Đã xóa");
             return ResponseEntity.ok().build();
         }
         return ResponseEntity.badRequest().body(new MessageResponse("Bạn không có quyền xóa tin nhắn này"));
     }
 
     /**
-     * bày tỏ cảm xúc về một tin nhắn
+     * bày tỏ cảm xúc về một tin nhắn, bày tỏ lần nữa thì thay thế cảm xúc cũ
      */
     @PostMapping("/react/{messageId}")
     @PreAuthorize("isAuthenticated()")
@@ -196,11 +325,28 @@ public class MessageRest {
                                                @ApiIgnore @AuthenticationPrincipal User user) {
         if (user == null)
             throw new UnAuthenticateException();
-        reaction.setReactByUserId(user.getId());
-        var criteria = Criteria.where("_id").is(messageId);
-        var update = new Update();
-        update.push("reactions", reaction);
-        mongoTemplate.updateFirst(Query.query(criteria), update, Message.class);
+        if (reaction.getType() == null)
+            throw new MyException("Lỗi: chưa chọn cảm xúc");
+        var message = messageRepository.findById(messageId).orElseThrow(MessageNotFoundException::new);
+        var previous = reactionService.react(messageId, user.getId(), reaction.getType());
+        if (previous != reaction.getType())
+            chatEventPublisher.publishReaction(message.getRoomId(), messageId, user.getId(), reaction.getType());
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * bỏ cảm xúc đã bày tỏ về một tin nhắn
+     */
+    @DeleteMapping("/react/{messageId}")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Bỏ cảm xúc về một tin nhắn")
+    public ResponseEntity<?> removeReactOfMessage(@PathVariable String messageId,
+                                                  @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        var message = messageRepository.findById(messageId).orElseThrow(MessageNotFoundException::new);
+        if (reactionService.unreact(messageId, user.getId()) != null)
+            chatEventPublisher.publishReaction(message.getRoomId(), messageId, user.getId(), null);
         return ResponseEntity.ok().build();
     }
 
@@ -224,27 +370,29 @@ public class MessageRest {
     }
 
     /**
-     * lấy danh sách người đã bày tỏ cảm xúc về một tin nhắn
+     * lấy danh sách người đã bày tỏ cảm xúc về một tin nhắn theo trang, có thể lọc theo loại cảm xúc
      */
     @GetMapping("/react/{messageId}")
     @PreAuthorize("isAuthenticated()")
     @ApiOperation("Chi tiết tin nhắn: Lấy danh sách những người đã bày tỏ cảm xúc về tin nhắn này")
-    public ResponseEntity<?> getReaction(@PathVariable String messageId, @ApiIgnore @AuthenticationPrincipal User user) {
+    public ResponseEntity<?> getReaction(@PathVariable String messageId,
+                                         @RequestParam(required = false) ReactionType type,
+                                         Pageable pageable,
+                                         @ApiIgnore @AuthenticationPrincipal User user) {
         if (user == null)
             throw new UnAuthenticateException();
-        Optional<Message> optionalMessage = messageRepository.findById(messageId);
-        if (optionalMessage.isEmpty())
+        if (! messageRepository.existsById(messageId))
             return ResponseEntity.badRequest().build();
-        List<Reaction> reactions = optionalMessage.get().getReactions();
-        return ResponseEntity.ok(reactions.stream().map(x -> reactionMapper.toReactionDto(x)).collect(Collectors.toList()));
+        return ResponseEntity.ok(reactionService.getReactions(messageId, type, pageable));
     }
 
     /**
      * chuyển từ page message qua page messageDto
      */
-    private Page<?> toMessageDto(Page<Message> messagePage, Page<InboxMessage> inboxMessagePage) {
+    private Page<?> toMessageDto(Page<Message> messagePage, Page<?> inboxMessagePage) {
         List<Message> content = messagePage.getContent();
-        List<MessageDto> dto = content.stream().map(x -> messageMapper.toMessageDto(x.getId())).collect(Collectors.toList());
+        // dùng luôn danh sách message đã lấy, chuyển sang dto theo lô thay vì findById lại từng tin nhắn
+        List<MessageDto> dto = messageMapper.toMessageDtos(content);
 
         /*
         tham số thứ 2 truyền vào là pageAble của truy vấn trước đó trong collection inboxMessage
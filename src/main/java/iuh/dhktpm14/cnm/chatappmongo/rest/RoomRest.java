@@ -11,16 +11,21 @@ import iuh.dhktpm14.cnm.chatappmongo.exceptions.RoomNotFoundException;
 import iuh.dhktpm14.cnm.chatappmongo.exceptions.UnAuthenticateException;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.MemberMapper;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.RoomMapper;
+import iuh.dhktpm14.cnm.chatappmongo.payload.MessageResponse;
 import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
-import iuh.dhktpm14.cnm.chatappmongo.repository.ReadTrackingRepository;
 import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomCache;
+import iuh.dhktpm14.cnm.chatappmongo.service.RoomService;
+import iuh.dhktpm14.cnm.chatappmongo.service.UnreadService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -31,7 +36,6 @@ import springfox.documentation.annotations.ApiIgnore;
 
 import java.util.Date;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -53,7 +57,13 @@ public class RoomRest {
     private MemberMapper memberMapper;
 
     @Autowired
-    private ReadTrackingRepository readTrackingRepository;
+    private RoomCache roomCache;
+
+    @Autowired
+    private RoomService roomService;
+
+    @Autowired
+    private UnreadService unreadService;
 
     /**
      * endpoint lấy số tin nhắn mới theo roomId, nếu cần
@@ -64,11 +74,7 @@ public class RoomRest {
     public ResponseEntity<?> countNewMessage(@ApiIgnore @AuthenticationPrincipal User user, @PathVariable String roomId) {
         if (user == null)
             throw new UnAuthenticateException();
-        var readTracking = readTrackingRepository.findByRoomIdAndUserId(roomId, user.getId());
-        if (readTracking != null) {
-            return ResponseEntity.ok(readTracking.getUnReadMessage());
-        }
-        return ResponseEntity.ok(0);
+        return ResponseEntity.ok(unreadService.countUnread(roomId, user.getId()));
     }
 
     /**
@@ -80,21 +86,16 @@ public class RoomRest {
     public ResponseEntity<?> getAllMembers(@ApiIgnore @AuthenticationPrincipal User user, @PathVariable String roomId) {
         if (user == null)
             throw new UnAuthenticateException();
-        Optional<Room> optional = roomRepository.findById(roomId);
-        if (optional.isPresent()) {
-            var room = optional.get();
-            Set<Member> members = room.getMembers();
-            for (Member m : members) {
-                // nếu là thành viên trong room mới xem được thông tin
-                if (m.getUserId().equals(user.getId())) {
-                    Set<MemberDto> dto = members.stream()
-                            .map(x -> memberMapper.toMemberDto(x))
-                            .collect(Collectors.toSet());
-                    return ResponseEntity.ok(dto);
-                }
-            }
-        }
-        return ResponseEntity.badRequest().build();
+        // đọc room một lần, room có thể bị xóa khỏi cache giữa hai lần đọc
+        var room = roomCache.getRoom(roomId);
+        // nếu là thành viên trong room mới xem được thông tin
+        if (room == null || room.getMembers() == null
+                || room.getMembers().stream().noneMatch(x -> user.getId().equals(x.getUserId())))
+            return ResponseEntity.badRequest().build();
+        Set<MemberDto> dto = room.getMembers().stream()
+                .map(x -> memberMapper.toMemberDto(x))
+                .collect(Collectors.toSet());
+        return ResponseEntity.ok(dto);
     }
 
     /**
@@ -106,17 +107,9 @@ public class RoomRest {
     public ResponseEntity<?> getById(@ApiIgnore @AuthenticationPrincipal User user, @PathVariable String roomId) {
         if (user == null)
             throw new UnAuthenticateException();
-        Optional<Room> optional = roomRepository.findById(roomId);
-        if (optional.isPresent()) {
-            var room = optional.get();
-            for (Member m : room.getMembers()) {
-                // nếu là thành viên trong room mới xem được thông tin
-                if (m.getUserId().equals(user.getId())) {
-                    return ResponseEntity.ok(roomMapper.toRoomDetailDto(roomId));
-                }
-            }
-        }
-
+        // nếu là thành viên trong room mới xem được thông tin
+        if (roomCache.isMember(roomId, user.getId()))
+            return ResponseEntity.ok(roomMapper.toRoomDetailDto(roomCache.getRoom(roomId)));
         return ResponseEntity.badRequest().build();
     }
 
@@ -151,7 +144,13 @@ public class RoomRest {
         }
         // thêm người dùng hiện tại vào nhóm
         room.getMembers().add(Member.builder().userId(user.getId()).build());
-        return ResponseEntity.ok(roomRepository.save(room));
+        room.setVersion(0L);
+        room.setMemberCount(room.getMembers().size());
+        // RoomCache được cập nhật trong onAfterSave
+        var saved = roomRepository.save(room);
+        roomService.createInboxesAndReadTrackings(saved, saved.getMembers().stream()
+                .map(Member::getUserId).collect(Collectors.toSet()));
+        return ResponseEntity.ok(saved);
     }
 
     /**
@@ -163,20 +162,44 @@ public class RoomRest {
     public ResponseEntity<?> addMemberToRoom(@PathVariable String roomId, @RequestBody List<Member> members, @ApiIgnore @AuthenticationPrincipal User user) {
         if (user == null)
             throw new UnAuthenticateException();
-        Optional<Room> roomOptional = roomRepository.findById(roomId);
-        if (roomOptional.isEmpty())
-            throw new RoomNotFoundException();
-        var room = roomOptional.get();
-        if (room.getType().equals(RoomType.ONE))
-            throw new MyException("Không thể thêm thành viên. Vui lòng tạo nhóm mới");
-        for (Member m : members) {
-            if (! m.getUserId().equals(user.getId())) {
-                m.setAddByUserId(user.getId());
-                m.setAddTime(new Date());
-            }
+        // chỉ thành viên của nhóm mới được thêm thành viên
+        if (! roomCache.isMember(roomId, user.getId())) {
+            if (roomCache.getRoom(roomId) == null)
+                throw new RoomNotFoundException();
+            return ResponseEntity.badRequest().body(new MessageResponse("Bạn không phải thành viên của nhóm này"));
         }
-        room.getMembers().addAll(members);
-        return ResponseEntity.ok(roomRepository.save(room));
+        /*
+        thêm thành viên bằng một lệnh cập nhật trên server ($push, kiểm tra version),
+        tạo inbox và readTracking cho thành viên mới theo lô
+         */
+        return ResponseEntity.ok(roomService.addMembers(roomId, members, user.getId()));
+    }
+
+    /**
+     * xóa thành viên khỏi nhóm, thành viên tự rời nhóm hoặc người tạo nhóm/quản trị viên xóa thành viên khác
+     */
+    @DeleteMapping("/group/{roomId}/members/{userId}")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Xóa thành viên khỏi nhóm chat")
+    public ResponseEntity<?> removeMemberFromRoom(@PathVariable String roomId, @PathVariable String userId,
+                                                  @ApiIgnore @AuthenticationPrincipal User user) {
+        if (user == null)
+            throw new UnAuthenticateException();
+        var room = roomCache.getRoom(roomId);
+        if (room == null)
+            throw new RoomNotFoundException();
+        if (RoomType.ONE.equals(room.getType()))
+            throw new MyException("Không thể xóa thành viên của cuộc trò chuyện này");
+        if (! user.getId().equals(userId) && ! isAdminOf(room, user.getId()))
+            return ResponseEntity.badRequest().body(new MessageResponse("Bạn không có quyền xóa thành viên này"));
+        return ResponseEntity.ok(roomService.removeMember(roomId, userId));
+    }
+
+    private static boolean isAdminOf(Room room, String userId) {
+        if (userId.equals(room.getCreateByUserId()))
+            return true;
+        return room.getMembers() != null && room.getMembers().stream()
+                .anyMatch(x -> userId.equals(x.getUserId()) && Boolean.TRUE.equals(x.getIsAdmin()));
     }
 
     @GetMapping("/common-group/count/{anotherUserId}")
@@ -187,20 +210,20 @@ public class RoomRest {
             throw new UnAuthenticateException();
         if (anotherUserId == null)
             return ResponseEntity.badRequest().build();
-        return ResponseEntity.ok(roomRepository.countCommonGroupBetween(user.getId(), anotherUserId));
+        return ResponseEntity.ok((long) roomService.commonGroupIds(user.getId(), anotherUserId).size());
     }
 
     @GetMapping("/common-group/{anotherUserId}")
     @PreAuthorize("isAuthenticated()")
     @ApiOperation("Lấy danh sách nhóm chung giữa hai người")
-    public ResponseEntity<?> getCommonGroup(@PathVariable String anotherUserId, @ApiIgnore @AuthenticationPrincipal User user) {
+    public ResponseEntity<?> getCommonGroup(@PathVariable String anotherUserId, Pageable pageable,
+                                            @ApiIgnore @AuthenticationPrincipal User user) {
         if (user == null)
             throw new UnAuthenticateException();
         if (anotherUserId == null)
             return ResponseEntity.badRequest().build();
-        List<Room> commonGroups = roomRepository.findCommonGroupBetween(user.getId(), anotherUserId);
-        List<Object> roomSummaryList = commonGroups.stream().map(roomMapper::toRoomSummaryDto).collect(Collectors.toList());
-        return ResponseEntity.ok(roomSummaryList);
+        Page<Room> commonGroups = roomService.getCommonGroups(user.getId(), anotherUserId, pageable);
+        return ResponseEntity.ok(commonGroups.map(roomMapper::toRoomSummaryDto));
     }
 
     /**
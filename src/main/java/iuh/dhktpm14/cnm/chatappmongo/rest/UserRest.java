@@ -5,7 +5,9 @@ import iuh.dhktpm14.cnm.chatappmongo.entity.User;
 import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
 import iuh.dhktpm14.cnm.chatappmongo.payload.MessageResponse;
 import iuh.dhktpm14.cnm.chatappmongo.repository.UserRepository;
+import iuh.dhktpm14.cnm.chatappmongo.service.UserSearchService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -13,6 +15,7 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import springfox.documentation.annotations.ApiIgnore;
 
@@ -27,6 +30,9 @@ public class UserRest {
     @Autowired
     private UserMapper userMapper;
 
+    @Autowired
+    private UserSearchService userSearchService;
+
     @GetMapping("/email")
     public ResponseEntity<?> existEmail(@RequestBody String email) {
         if (userRepository.existsByEmail(email)) {
@@ -42,4 +48,12 @@ public class UserRest {
         return ResponseEntity.ok(userMapper.toUserDetailDto(user));
     }
 
+    @GetMapping("/search")
+    @PreAuthorize("isAuthenticated()")
+    @ApiOperation("Tìm kiếm người dùng theo tên, bạn bè và người cùng nhóm được xếp trước")
+    public ResponseEntity<?> search(@RequestParam String keyword, Pageable pageable,
+                                    @ApiIgnore @AuthenticationPrincipal User user) {
+        return ResponseEntity.ok(userSearchService.search(user.getId(), keyword, pageable));
+    }
+
 }
@@ -0,0 +1,35 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteResult;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+
+/**
+ * chạy lệnh bulk unordered có upsert trên unique index
+ * <p>
+ * hai request cùng upsert một document mới thì một request bị lỗi duplicate key,
+ * document đó đã được request còn lại tạo nên lỗi này được bỏ qua,
+ * các lệnh khác trong bulk unordered vẫn được thực hiện
+ */
+public final class BulkWriteSupport {
+
+    private BulkWriteSupport() {
+    }
+
+    /**
+     * @return kết quả bulk, các upsert bị trùng không có trong getUpserts()
+     */
+    public static BulkWriteResult executeIgnoringDuplicates(BulkOperations ops) {
+        try {
+            return ops.execute();
+        } catch (BulkOperationException e) {
+            var onlyDuplicates = e.getErrors().stream()
+                    .allMatch(x -> ErrorCategory.fromErrorCode(x.getCode()) == ErrorCategory.DUPLICATE_KEY);
+            if (! onlyDuplicates || e.getResult() == null)
+                throw e;
+            return e.getResult();
+        }
+    }
+
+}
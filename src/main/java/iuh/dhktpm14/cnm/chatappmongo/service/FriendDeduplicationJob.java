@@ -0,0 +1,78 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.Friend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * xóa các record bạn bè trùng {userId, friendId} rồi tạo unique index trên hai field này
+ * <p>
+ * trước đây chấp nhận kết bạn hai lần lưu thêm record mới nên dữ liệu cũ có thể bị trùng,
+ * mỗi nhóm trùng giữ lại record tạo đầu tiên, các record còn lại được xóa theo lô
+ * <p>
+ * chạy một lần khi khởi động trong luồng riêng giống RoomBackfillJob, không còn record trùng thì chỉ kiểm tra index
+ */
+@Component
+public class FriendDeduplicationJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(FriendDeduplicationJob.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${chat.friend.deduplication.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.friend.deduplication.batch-size:500}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (! enabled)
+            return;
+        var thread = new Thread(this::deduplicate, "friend-deduplication");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void deduplicate() {
+        try {
+            long count = 0;
+            List<Object> removed = new ArrayList<>();
+            for (List<Object> ids : UniqueIndexSupport.findDuplicates(mongoTemplate, Friend.class, "userId", "friendId")) {
+                removed.addAll(ids.subList(1, ids.size()));
+                if (removed.size() >= batchSize) {
+                    count += remove(removed);
+                    removed.clear();
+                }
+            }
+            if (! removed.isEmpty())
+                count += remove(removed);
+            if (count > 0)
+                logger.info("Removed {} duplicate friend records", count);
+            UniqueIndexSupport.ensureUnique(mongoTemplate.indexOps(Friend.class),
+                    new Index().on("userId", Sort.Direction.ASC).on("friendId", Sort.Direction.ASC).background());
+        } catch (Exception e) {
+            logger.error("Friend deduplication failed: {}", e.getMessage());
+        }
+    }
+
+    private long remove(List<Object> ids) {
+        return mongoTemplate.remove(Query.query(Criteria.where("_id").in(ids)), Friend.class).getDeletedCount();
+    }
+
+}
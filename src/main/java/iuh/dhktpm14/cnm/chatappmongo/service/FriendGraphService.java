@@ -0,0 +1,233 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import iuh.dhktpm14.cnm.chatappmongo.chat.UserMessageSender;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterBus;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterEnvelope;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Friend;
+import iuh.dhktpm14.cnm.chatappmongo.repository.FriendRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * đồ thị bạn bè: cache danh sách id bạn bè (HashSet) của từng user để kiểm tra bạn bè trong O(1)
+ * <p>
+ * mỗi quan hệ bạn bè lưu 2 record {userId, friendId} nên danh sách bạn của một user
+ * chỉ cần đọc theo userId (có index), được nạp khi cần, nhiều user cùng lúc bằng một truy vấn $in.
+ * kết bạn và xóa bạn phải đi qua service này để cache được cập nhật,
+ * set trong cache dùng chung nên không được sửa, mỗi lần thay đổi tạo set mới
+ * <p>
+ * khi chạy nhiều node (chat.broker.mode=bus), sau mỗi thay đổi gửi một envelope broadcast qua ClusterBus,
+ * các node khác xóa entry của hai user trong cache và báo cho listener của mình,
+ * ttl giới hạn thời gian dùng bản cũ khi envelope bị mất
+ * <p>
+ * số lần hit/miss xem tại /actuator/metrics/cache.gets?tag=cache:friendGraph
+ */
+@Service
+public class FriendGraphService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FriendGraphService.class);
+
+    /**
+     * destination của envelope báo thay đổi bạn bè giữa các node
+     */
+    private static final String CLUSTER_DESTINATION = "friendGraph";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private FriendRepository friendRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private UserMessageSender userMessageSender;
+
+    /**
+     * chỉ có khi chat.broker.mode=bus
+     */
+    @Autowired(required = false)
+    private ClusterBus clusterBus;
+
+    @Value("${chat.cache.friend.max-size:10000}")
+    private long maxSize;
+
+    @Value("${chat.cache.friend.ttl:5m}")
+    private Duration ttl;
+
+    private Cache<String, Set<String>> cache;
+
+    /**
+     * được gọi với (userId, friendId) sau mỗi lần kết bạn hoặc xóa bạn
+     */
+    private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "friendGraph");
+        if (clusterBus != null)
+            clusterBus.subscribe(ClusterBus.BROADCAST, this::receive);
+    }
+
+    /**
+     * @return id bạn bè của user (không sửa được)
+     */
+    public Set<String> getFriendIds(String userId) {
+        if (userId == null)
+            return Collections.emptySet();
+        return cache.get(userId, id -> load(List.of(id)).getOrDefault(id, Collections.emptySet()));
+    }
+
+    /**
+     * lấy danh sách bạn của nhiều user, những user chưa có trong cache được đọc bằng một truy vấn $in
+     */
+    public Map<String, Set<String>> getFriendIds(Collection<String> userIds) {
+        return cache.getAll(userIds, keys -> {
+            List<String> missing = new ArrayList<>();
+            keys.forEach(missing::add);
+            Map<String, Set<String>> loaded = load(missing);
+            missing.forEach(x -> loaded.putIfAbsent(x, Collections.emptySet()));
+            return loaded;
+        });
+    }
+
+    public void addListener(BiConsumer<String, String> listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isFriend(String userId, String otherId) {
+        return otherId != null && getFriendIds(userId).contains(otherId);
+    }
+
+    /**
+     * upsert 2 record bạn bè và cập nhật cache của cả hai người,
+     * đã là bạn hoặc hai request kết bạn cùng lúc thì không tạo record trùng
+     */
+    public void addFriendship(String userId, String friendId) {
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Friend.class);
+        var now = new Date();
+        for (String[] pair : new String[][]{{userId, friendId}, {friendId, userId}}) {
+            var update = new Update();
+            update.setOnInsert("createAt", now);
+            ops.upsert(Query.query(Criteria.where("userId").is(pair[0]).and("friendId").is(pair[1])), update);
+        }
+        BulkWriteSupport.executeIgnoringDuplicates(ops);
+        update(userId, friendId, true);
+        update(friendId, userId, true);
+        listeners.forEach(x -> x.accept(userId, friendId));
+        publish(userId, friendId);
+    }
+
+    /**
+     * xóa cả 2 record bạn bè và cập nhật cache của cả hai người
+     */
+    public void removeFriendship(String userId, String friendId) {
+        friendRepository.deleteFriend(userId, friendId);
+        update(userId, friendId, false);
+        update(friendId, userId, false);
+        listeners.forEach(x -> x.accept(userId, friendId));
+        publish(userId, friendId);
+    }
+
+    /**
+     * @return id bạn chung của hai user, xếp theo id
+     */
+    public List<String> getMutualFriendIds(String userId, String otherId) {
+        Set<String> first = getFriendIds(userId);
+        Set<String> second = getFriendIds(otherId);
+        // duyệt set nhỏ hơn, kiểm tra trong set lớn hơn
+        Set<String> smaller = first.size() <= second.size() ? first : second;
+        Set<String> larger = smaller == first ? second : first;
+        return smaller.stream().filter(larger::contains).sorted().collect(Collectors.toList());
+    }
+
+    private void update(String userId, String friendId, boolean add) {
+        // chỉ sửa entry đang có trong cache, chưa có thì lần sau nạp từ database
+        cache.asMap().computeIfPresent(userId, (id, friendIds) -> {
+            Set<String> copy = new HashSet<>(friendIds);
+            if (add)
+                copy.add(friendId);
+            else
+                copy.remove(friendId);
+            return Collections.unmodifiableSet(copy);
+        });
+    }
+
+    /**
+     * báo cho các node khác xóa cache của hai user
+     */
+    private void publish(String userId, String friendId) {
+        if (clusterBus == null)
+            return;
+        try {
+            clusterBus.publish(ClusterEnvelope.builder()
+                    .sourceNode(userMessageSender.getNodeId())
+                    .targetNode(ClusterBus.BROADCAST)
+                    .userIds(List.of(userId, friendId))
+                    .destination(CLUSTER_DESTINATION)
+                    .createAt(new Date())
+                    .build());
+        } catch (Exception e) {
+            logger.error("Cannot publish friend change of {} and {}: {}", userId, friendId, e.getMessage());
+        }
+    }
+
+    /**
+     * nhận thay đổi bạn bè từ node khác, lần đọc sau nạp lại từ database
+     */
+    private void receive(ClusterEnvelope envelope) {
+        if (! CLUSTER_DESTINATION.equals(envelope.getDestination())
+                || userMessageSender.getNodeId().equals(envelope.getSourceNode())
+                || envelope.getUserIds() == null || envelope.getUserIds().size() != 2)
+            return;
+        String userId = envelope.getUserIds().get(0);
+        String friendId = envelope.getUserIds().get(1);
+        cache.invalidateAll(envelope.getUserIds());
+        listeners.forEach(x -> x.accept(userId, friendId));
+    }
+
+    private Map<String, Set<String>> load(Collection<String> userIds) {
+        var query = Query.query(Criteria.where("userId").in(userIds));
+        query.fields().include("userId").include("friendId");
+        Map<String, Set<String>> friendIds = new HashMap<>();
+        for (Friend friend : mongoTemplate.find(query, Friend.class))
+            friendIds.computeIfAbsent(friend.getUserId(), x -> new HashSet<>()).add(friend.getFriendId());
+        Map<String, Set<String>> result = new HashMap<>();
+        friendIds.forEach((id, ids) -> result.put(id, Collections.unmodifiableSet(ids)));
+        return result;
+    }
+
+}
@@ -0,0 +1,274 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * gợi ý kết bạn và số bạn chung
+ * <p>
+ * ứng viên là bạn của bạn bè và thành viên của các nhóm chung, điểm = số bạn chung * friend-weight
+ * + số nhóm chung * group-weight. khi tính, id của ứng viên được đánh số 0..n-1 và đếm trên mảng int
+ * thay vì map theo id, danh sách bạn của tất cả bạn bè lấy từ FriendGraphService bằng một lần nạp
+ * <p>
+ * danh sách gợi ý của mỗi user được cache, khi kết bạn hoặc xóa bạn thì bỏ cache của hai người và bạn bè của họ
+ * (những người có số bạn chung thay đổi) rồi tính lại ngay cho hai người trong luồng nền,
+ * khi nhóm thêm hoặc xóa thành viên thì RoomService bỏ cache của các thành viên (số nhóm chung thay đổi)
+ */
+@Service
+public class FriendSuggestionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FriendSuggestionService.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private FriendGraphService friendGraphService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * số bạn bè tối đa được duyệt khi tìm gợi ý kết bạn, user có nhiều bạn hơn chỉ xét một phần
+     */
+    @Value("${chat.friend.suggestion.max-fanout:200}")
+    private int maxFanout;
+
+    /**
+     * nhóm đông hơn không được tính là nhóm chung khi gợi ý
+     */
+    @Value("${chat.friend.suggestion.max-group-size:200}")
+    private int maxGroupSize;
+
+    @Value("${chat.friend.suggestion.friend-weight:2}")
+    private int friendWeight;
+
+    @Value("${chat.friend.suggestion.group-weight:1}")
+    private int groupWeight;
+
+    /**
+     * số gợi ý được giữ trong cache cho mỗi user
+     */
+    @Value("${chat.friend.suggestion.max-size:50}")
+    private int maxSize;
+
+    @Value("${chat.cache.friend-suggestion.max-size:10000}")
+    private long cacheSize;
+
+    @Value("${chat.cache.friend-suggestion.ttl:30m}")
+    private Duration ttl;
+
+    private Cache<String, List<Suggestion>> cache;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "friendSuggestion");
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "friend-suggestion");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        friendGraphService.addListener(this::onFriendshipChanged);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return tối đa limit gợi ý, xếp theo điểm giảm dần
+     */
+    public List<Suggestion> suggest(String userId, int limit) {
+        List<Suggestion> suggestions = cache.get(userId, this::compute);
+        return suggestions.subList(0, Math.min(Math.max(0, limit), suggestions.size()));
+    }
+
+    /**
+     * số bạn chung giữa user và từng người trong otherIds, danh sách bạn của tất cả được nạp trong một lần
+     */
+    public Map<String, Integer> countMutualFriends(String userId, Collection<String> otherIds) {
+        Set<String> friendIds = friendGraphService.getFriendIds(userId);
+        Map<String, Integer> result = new HashMap<>();
+        if (otherIds.isEmpty())
+            return result;
+        friendGraphService.getFriendIds(otherIds).forEach((otherId, otherFriendIds) -> {
+            // duyệt set nhỏ hơn, kiểm tra trong set lớn hơn
+            Set<String> smaller = friendIds.size() <= otherFriendIds.size() ? friendIds : otherFriendIds;
+            Set<String> larger = smaller == friendIds ? otherFriendIds : friendIds;
+            var count = 0;
+            for (String id : smaller)
+                if (larger.contains(id))
+                    count++;
+            result.put(otherId, count);
+        });
+        return result;
+    }
+
+    /**
+     * bỏ gợi ý đã cache của các user, lần đọc sau tính lại
+     */
+    public void invalidate(Collection<String> userIds) {
+        cache.invalidateAll(userIds);
+    }
+
+    void onFriendshipChanged(String userId, String friendId) {
+        Set<String> affected = new HashSet<>();
+        affected.add(userId);
+        affected.add(friendId);
+        affected.addAll(friendGraphService.getFriendIds(userId));
+        affected.addAll(friendGraphService.getFriendIds(friendId));
+        cache.invalidateAll(affected);
+        executor.execute(() -> {
+            try {
+                cache.get(userId, this::compute);
+                cache.get(friendId, this::compute);
+            } catch (Exception e) {
+                logger.error("Friend suggestion recompute failed: {}", e.getMessage());
+            }
+        });
+    }
+
+    private List<Suggestion> compute(String userId) {
+        Set<String> friendIds = friendGraphService.getFriendIds(userId);
+        var candidates = new CandidateIndex();
+
+        List<String> expanded = friendIds.stream().sorted().limit(maxFanout).collect(Collectors.toList());
+        for (Set<String> friendsOfFriend : friendGraphService.getFriendIds(expanded).values())
+            for (String candidate : friendsOfFriend)
+                if (! candidate.equals(userId) && ! friendIds.contains(candidate))
+                    candidates.addMutualFriend(candidate);
+
+        for (Set<String> memberIds : groupMemberIdsOf(userId))
+            for (String candidate : memberIds)
+                if (! candidate.equals(userId) && ! friendIds.contains(candidate))
+                    candidates.addSharedGroup(candidate);
+
+        int[] order = candidates.topByScore(maxSize);
+        List<Suggestion> result = new ArrayList<>(order.length);
+        for (int i : order)
+            result.add(new Suggestion(candidates.ids.get(i), candidates.mutualFriends[i], candidates.sharedGroups[i]));
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * id thành viên của từng nhóm của user, bỏ các nhóm đông hơn max-group-size
+     */
+    private List<Set<String>> groupMemberIdsOf(String userId) {
+        var query = Query.query(Criteria.where("members.userId").is(userId).and("type").is(RoomType.GROUP));
+        query.fields().include("members.userId");
+        List<Set<String>> result = new ArrayList<>();
+        for (Room room : mongoTemplate.find(query, Room.class)) {
+            if (room.getMembers() == null || room.getMembers().size() > maxGroupSize)
+                continue;
+            result.add(room.getMembers().stream().map(Member::getUserId).collect(Collectors.toSet()));
+        }
+        return result;
+    }
+
+    /**
+     * đánh số ứng viên theo thứ tự gặp, số đếm lưu trong mảng int theo số thứ tự
+     */
+    private class CandidateIndex {
+        private final Map<String, Integer> index = new HashMap<>();
+        private final List<String> ids = new ArrayList<>();
+        private int[] mutualFriends = new int[64];
+        private int[] sharedGroups = new int[64];
+
+        int indexOf(String id) {
+            Integer i = index.get(id);
+            if (i != null)
+                return i;
+            i = ids.size();
+            index.put(id, i);
+            ids.add(id);
+            if (i == mutualFriends.length) {
+                mutualFriends = Arrays.copyOf(mutualFriends, i * 2);
+                sharedGroups = Arrays.copyOf(sharedGroups, i * 2);
+            }
+            return i;
+        }
+
+        void addMutualFriend(String id) {
+            // indexOf có thể thay mảng mới nên phải gọi trước khi truy cập mảng
+            int i = indexOf(id);
+            mutualFriends[i]++;
+        }
+
+        void addSharedGroup(String id) {
+            int i = indexOf(id);
+            sharedGroups[i]++;
+        }
+
+        int score(int i) {
+            return mutualFriends[i] * friendWeight + sharedGroups[i] * groupWeight;
+        }
+
+        /**
+         * số thứ tự của limit ứng viên có điểm cao nhất, cùng điểm thì xếp theo số bạn chung rồi theo id
+         */
+        int[] topByScore(int limit) {
+            return IntStream.range(0, ids.size())
+                    .boxed()
+                    .sorted((x, y) -> {
+                        var compare = Integer.compare(score(y), score(x));
+                        if (compare == 0)
+                            compare = Integer.compare(mutualFriends[y], mutualFriends[x]);
+                        return compare != 0 ? compare : ids.get(x).compareTo(ids.get(y));
+                    })
+                    .limit(limit)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor(access = AccessLevel.PACKAGE)
+    public static class Suggestion {
+        private final String userId;
+        private final int mutualFriends;
+        private final int sharedGroups;
+    }
+
+}
@@ -0,0 +1,127 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * xóa dần các inboxMessage bị ẩn bởi clearedBefore của inbox (xóa cuộc trò chuyện)
+ * <p>
+ * chạy định kỳ trong một luồng ưu tiên thấp, mỗi lần xóa tối đa batch-size inboxMessage theo _id
+ * rồi nghỉ batch-delay để không chiếm database và oplog.
+ * inbox được xóa xong thì bỏ pendingCompaction, nếu trong lúc đó bị xóa cuộc trò chuyện lần nữa thì giữ lại
+ * để lần chạy sau xóa tiếp. nhiều node cùng chạy thì có thể xóa trùng, không ảnh hưởng kết quả
+ */
+@Component
+public class InboxCompactor {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxCompactor.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${chat.inbox.compaction.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.inbox.compaction.interval:1m}")
+    private Duration interval;
+
+    @Value("${chat.inbox.compaction.batch-size:500}")
+    private int batchSize;
+
+    @Value("${chat.inbox.compaction.batch-delay:200ms}")
+    private Duration batchDelay;
+
+    private ScheduledExecutorService executor;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        if (! enabled)
+            return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "inbox-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        long period = Math.max(1, interval.toMillis());
+        executor.scheduleWithFixedDelay(this::compact, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    void compact() {
+        try {
+            while (running) {
+                var query = Query.query(Criteria.where("pendingCompaction").is(true)).limit(batchSize);
+                query.fields().include("_id").include("clearedBefore");
+                List<Inbox> inboxes = mongoTemplate.find(query, Inbox.class);
+                if (inboxes.isEmpty())
+                    return;
+                for (Inbox inbox : inboxes) {
+                    if (! running)
+                        return;
+                    compact(inbox);
+                }
+                if (inboxes.size() < batchSize)
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Inbox compaction failed: {}", e.getMessage());
+        }
+    }
+
+    private void compact(Inbox inbox) throws InterruptedException {
+        if (inbox.getClearedBefore() != null) {
+            while (running) {
+                var criteria = Criteria.where("inboxId").is(inbox.getId())
+                        .and("messageCreateAt").lte(inbox.getClearedBefore());
+                var query = Query.query(criteria).with(Sort.by(Sort.Direction.DESC, "messageCreateAt", "_id"))
+                        .limit(batchSize);
+                query.fields().include("_id");
+                List<String> ids = mongoTemplate.find(query, InboxMessage.class).stream()
+                        .map(InboxMessage::getId)
+                        .collect(Collectors.toList());
+                if (ids.isEmpty())
+                    break;
+                mongoTemplate.remove(Query.query(Criteria.where("_id").in(ids)), InboxMessage.class);
+                Thread.sleep(batchDelay.toMillis());
+                if (ids.size() < batchSize)
+                    break;
+            }
+        }
+        if (! running)
+            return;
+        // chỉ bỏ đánh dấu khi clearedBefore không đổi trong lúc xóa
+        var criteria = Criteria.where("_id").is(inbox.getId()).and("clearedBefore").is(inbox.getClearedBefore());
+        mongoTemplate.updateFirst(Query.query(criteria), new Update().unset("pendingCompaction"), Inbox.class);
+    }
+
+}
@@ -0,0 +1,100 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * gộp các inbox trùng {roomId, ofUserId} rồi tạo unique index trên hai field này
+ * <p>
+ * luồng gửi tin nhắn cũ tìm rồi mới tạo inbox nên hai request đồng thời có thể tạo hai inbox cho một thành viên.
+ * inbox giữ lại là inbox tạo đầu tiên, inboxMessage của các inbox còn lại được chuyển sang inbox này
+ * <p>
+ * chạy một lần khi khởi động trong luồng riêng giống RoomBackfillJob, không còn inbox trùng thì chỉ kiểm tra index
+ */
+@Component
+public class InboxDeduplicationJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxDeduplicationJob.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${chat.inbox.deduplication.enabled:true}")
+    private boolean enabled;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (! enabled)
+            return;
+        var thread = new Thread(this::deduplicate, "inbox-deduplication");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void deduplicate() {
+        try {
+            var count = 0;
+            for (List<Object> ids : UniqueIndexSupport.findDuplicates(mongoTemplate, Inbox.class, "roomId", "ofUserId"))
+                count += merge(ids);
+            if (count > 0)
+                logger.info("Merged {} duplicate inboxes", count);
+            UniqueIndexSupport.ensureUnique(mongoTemplate.indexOps(Inbox.class),
+                    new Index().on("roomId", Sort.Direction.ASC).on("ofUserId", Sort.Direction.ASC).background());
+        } catch (Exception e) {
+            logger.error("Inbox deduplication failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * gộp các inbox vào inbox đầu tiên: còn trống khi tất cả đều trống, clearedBefore lấy mốc muộn nhất,
+     * leftAt chỉ giữ khi tất cả đều đã rời nhóm
+     *
+     * @return số inbox đã xóa
+     */
+    private int merge(List<Object> ids) {
+        List<Inbox> inboxes = mongoTemplate.find(Query.query(Criteria.where("_id").in(ids)), Inbox.class);
+        if (inboxes.size() < 2)
+            return 0;
+        var keep = inboxes.stream().min(Comparator.comparing(Inbox::getId)).orElseThrow();
+        List<String> removed = inboxes.stream().map(Inbox::getId).filter(x -> ! x.equals(keep.getId()))
+                .collect(Collectors.toList());
+
+        mongoTemplate.updateMulti(Query.query(Criteria.where("inboxId").in(removed)),
+                new Update().set("inboxId", keep.getId()), InboxMessage.class);
+
+        var update = new Update();
+        update.set("empty", inboxes.stream().allMatch(Inbox::isEmpty));
+        // inboxMessage được chuyển sang có thể cũ hơn clearedBefore mới nên đánh dấu cho InboxCompactor
+        inboxes.stream().map(Inbox::getClearedBefore).filter(Objects::nonNull).max(Date::compareTo)
+                .ifPresent(x -> update.set("clearedBefore", x).set("pendingCompaction", true));
+        if (inboxes.stream().allMatch(x -> x.getLeftAt() != null))
+            update.set("leftAt", inboxes.stream().map(Inbox::getLeftAt).max(Date::compareTo).orElseThrow());
+        else
+            update.unset("leftAt");
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(keep.getId())), update, Inbox.class);
+
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(removed)), Inbox.class);
+        return removed.size();
+    }
+
+}
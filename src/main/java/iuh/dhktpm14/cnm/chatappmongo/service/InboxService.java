@@ -0,0 +1,161 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.InboxDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.RoomMapper;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Service
+public class InboxService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private RoomMapper roomMapper;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private UnreadService unreadService;
+
+    /**
+     * lấy danh sách inbox của user, sắp xếp theo thời gian tin nhắn cuối giảm dần
+     * <p>
+     * cả trang được lấy bằng một aggregation ($lookup room, readTracking và readTracking của tin nhắn cuối),
+     * tin nhắn cuối lấy từ lastMessage lưu trong room nên không truy vấn collection message,
+     * sau đó lấy profile của các user liên quan bằng một truy vấn $in
+     */
+    public Page<InboxDto> getAllInboxOfUser(String userId, Pageable pageable) {
+        String roomCollection = mongoTemplate.getCollectionName(Room.class);
+        String readTrackingCollection = mongoTemplate.getCollectionName(ReadTracking.class);
+
+        List<AggregationOperation> operations = new ArrayList<>();
+        operations.add(stage("$match", new Document("ofUserId", userId).append("empty", false)));
+        // roomId trong inbox lưu dạng string, _id của room là ObjectId
+        operations.add(stage("$addFields", new Document("roomObjectId",
+                new Document("$convert", new Document("input", "$roomId").append("to", "objectId")
+                        .append("onError", null).append("onNull", null)))));
+        operations.add(stage("$lookup", new Document("from", roomCollection)
+                .append("localField", "roomObjectId")
+                .append("foreignField", "_id")
+                .append("as", "room")));
+        operations.add(stage("$unwind", "$room"));
+        operations.add(stage("$lookup", new Document("from", readTrackingCollection)
+                .append("let", new Document("roomId", "$roomId"))
+                .append("pipeline", List.of(
+                        new Document("$match", new Document("$expr", new Document("$and", List.of(
+                                new Document("$eq", List.of("$roomId", "$$roomId")),
+                                new Document("$eq", List.of("$userId", userId)))))),
+                        new Document("$project", new Document("unReadMessage", 1).append("lastReadSeq", 1)),
+                        new Document("$limit", 1)))
+                .append("as", "readTracking")));
+        /*
+        readTracking của tin nhắn cuối, id tin nhắn cuối lấy từ lastMessage lưu trong room,
+        room chưa có lastMessage thì so sánh với chuỗi rỗng để không khớp readTracking nào
+         */
+        operations.add(stage("$lookup", new Document("from", readTrackingCollection)
+                .append("let", new Document("messageId", new Document("$ifNull", List.of("$room.lastMessage.messageId", ""))))
+                .append("pipeline", List.of(new Document("$match",
+                        new Document("$expr", new Document("$eq", List.of("$messageId", "$$messageId"))))))
+                .append("as", "lastMessageReadTracking")));
+        operations.add(stage("$addFields", new Document("lastMessageAt",
+                new Document("$ifNull", List.of("$room.lastMessage.createAt", new Date(0))))));
+        operations.add(stage("$sort", new Document("lastMessageAt", -1).append("_id", -1)));
+
+        List<Document> contentStages = new ArrayList<>();
+        if (pageable.isPaged()) {
+            contentStages.add(new Document("$skip", pageable.getOffset()));
+            contentStages.add(new Document("$limit", pageable.getPageSize()));
+        }
+        operations.add(stage("$facet", new Document("content", contentStages.isEmpty()
+                ? List.of(new Document("$match", new Document()))
+                : contentStages)
+                .append("total", List.of(new Document("$count", "count")))));
+
+        Document result = mongoTemplate.aggregate(Aggregation.newAggregation(operations),
+                mongoTemplate.getCollectionName(Inbox.class), Document.class).getUniqueMappedResult();
+        if (result == null)
+            return new PageImpl<>(new ArrayList<>(), pageable, 0);
+
+        List<Document> content = result.getList("content", Document.class);
+        List<Document> total = result.getList("total", Document.class);
+        long totalElements = total.isEmpty() ? 0 : ((Number) total.get(0).get("count")).longValue();
+
+        return new PageImpl<>(toInboxDto(content, userId), pageable, totalElements);
+    }
+
+    private List<InboxDto> toInboxDto(List<Document> content, String userId) {
+        var converter = mongoTemplate.getConverter();
+        List<Room> rooms = new ArrayList<>(content.size());
+        List<List<ReadTracking>> lastMessageReadTrackings = new ArrayList<>(content.size());
+        Set<String> userIds = new HashSet<>();
+
+        for (Document document : content) {
+            var room = converter.read(Room.class, document.get("room", Document.class));
+            rooms.add(room);
+            if (RoomType.ONE.equals(room.getType()) && room.getMembers() != null)
+                room.getMembers().stream().map(Member::getUserId)
+                        .filter(x -> ! userId.equals(x)).forEach(userIds::add);
+            if (room.getLastMessage() != null)
+                userIds.add(room.getLastMessage().getSenderId());
+
+            List<ReadTracking> readTrackings = new ArrayList<>();
+            for (Document x : document.getList("lastMessageReadTracking", Document.class)) {
+                var readTracking = converter.read(ReadTracking.class, x);
+                readTrackings.add(readTracking);
+                userIds.add(readTracking.getUserId());
+            }
+            lastMessageReadTrackings.add(readTrackings);
+        }
+
+        // lấy profile của tất cả user liên quan trong một lần, các mapper phía sau lấy lại trong cache
+        Map<String, UserProfileDto> users = userMapper.toUserProfileDtos(userIds);
+
+        List<InboxDto> result = new ArrayList<>(content.size());
+        for (var i = 0; i < content.size(); i++) {
+            var room = rooms.get(i);
+            var dto = new InboxDto();
+            dto.setId(content.get(i).get("_id").toString());
+            dto.setRoom(roomMapper.toRoomSummaryDto(room));
+            List<Document> readTracking = content.get(i).getList("readTracking", Document.class);
+            if (! readTracking.isEmpty())
+                dto.setCountNewMessage(unreadService.unreadOf(converter.read(ReadTracking.class, readTracking.get(0)),
+                        room.getMessageSeq()));
+            dto.setLastMessage(messageMapper.toMessageDto(room.getLastMessage(), lastMessageReadTrackings.get(i), users));
+            result.add(dto);
+        }
+        return result;
+    }
+
+    private static AggregationOperation stage(String operator, Object value) {
+        return context -> new Document(operator, value);
+    }
+
+}
@@ -0,0 +1,122 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * bổ sung dữ liệu cho các tin nhắn đã có trước khi thêm field mới
+ * <p>
+ * searchTokens: tính từ content của từng tin nhắn văn bản chưa gỡ chưa có, ghi lại theo lô
+ * <p>
+ * reactions: chuyển mảng reactions của tin nhắn cũ sang messageReaction (ReactionService.migrateLegacy)
+ * <p>
+ * chạy một lần khi khởi động trong luồng riêng giống RoomBackfillJob, tin nhắn đã có dữ liệu thì bỏ qua
+ */
+@Component
+public class MessageBackfillJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageBackfillJob.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageSearchService messageSearchService;
+
+    @Autowired
+    private ReactionService reactionService;
+
+    @Value("${chat.message.backfill.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.message.backfill.batch-size:500}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (! enabled)
+            return;
+        var thread = new Thread(this::backfill, "message-backfill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void backfill() {
+        try {
+            long count = backfillSearchTokens();
+            if (count > 0)
+                logger.info("Backfilled searchTokens of {} messages", count);
+            count = backfillReactions();
+            if (count > 0)
+                logger.info("Migrated legacy reactions of {} messages", count);
+        } catch (Exception e) {
+            logger.error("Message backfill failed: {}", e.getMessage());
+        }
+    }
+
+    private long backfillReactions() {
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            var criteria = Criteria.where("reactions").exists(true);
+            if (lastId != null)
+                criteria.and("_id").gt(lastId);
+            var query = Query.query(criteria).with(Sort.by("_id")).limit(batchSize);
+            query.fields().include("_id");
+            List<Message> messages = mongoTemplate.find(query, Message.class);
+            if (messages.isEmpty())
+                return count;
+            // tin nhắn đã được chuyển bởi react/unreact trong lúc chạy thì bỏ qua
+            for (Message message : messages)
+                if (reactionService.migrateLegacy(message.getId()))
+                    count++;
+            lastId = messages.get(messages.size() - 1).getId();
+        }
+    }
+
+    private long backfillSearchTokens() {
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            // tin nhắn văn bản chưa gỡ, type null là tin nhắn văn bản cũ
+            var criteria = Criteria.where("searchTokens").exists(false).and("deleted").ne(true)
+                    .and("type").in("TEXT", null);
+            if (lastId != null)
+                criteria.and("_id").gt(lastId);
+            var query = Query.query(criteria).with(Sort.by("_id")).limit(batchSize);
+            query.fields().include("_id").include("type").include("content");
+            List<Message> messages = mongoTemplate.find(query, Message.class);
+            if (messages.isEmpty())
+                return count;
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class);
+            for (Message message : messages) {
+                var tokens = messageSearchService.tokensOf(message);
+                var update = new Update();
+                update.set("searchTokens", tokens == null ? new ArrayList<>() : new ArrayList<>(tokens));
+                // tin nhắn bị gỡ trong lúc chạy thì không ghi lại
+                ops.updateOne(Query.query(Criteria.where("_id").is(message.getId()).and("deleted").ne(true)), update);
+            }
+            ops.execute();
+            count += messages.size();
+            lastId = messages.get(messages.size() - 1).getId();
+        }
+    }
+
+}
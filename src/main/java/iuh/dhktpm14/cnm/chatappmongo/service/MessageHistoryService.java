@@ -0,0 +1,285 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.CursorPageDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.MyException;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * lấy lịch sử tin nhắn của inbox theo cursor (messageCreateAt, _id) thay vì skip/limit
+ * <p>
+ * mỗi trang chỉ đọc size + 1 entry trên index {inboxId: 1, messageCreateAt: -1, _id: -1}
+ * bắt đầu từ vị trí của cursor nên thời gian không phụ thuộc vào việc cuộn xa đến đâu,
+ * và không chạy truy vấn count
+ * <p>
+ * room fanOutOnRead không có inboxMessage, tin nhắn được đọc trực tiếp từ message
+ * trên index {roomId: 1, createAt: -1, _id: -1}, giới hạn bởi clearedBefore và leftAt của inbox.
+ * các truy vấn kiểm tra tin nhắn có trong inbox hay không đều đi qua service này
+ */
+@Service
+public class MessageHistoryService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private RoomService roomService;
+
+    @Value("${chat.message.history.max-size:100}")
+    private int maxSize;
+
+    /**
+     * khoảng trống seq mới hơn khoảng này được coi là tin nhắn đang ghi (getMessagesAfterSeq)
+     */
+    @Value("${chat.sync.settle-window:1s}")
+    private Duration settleWindow;
+
+    /**
+     * lấy size tin nhắn trước cursor, cursor null thì lấy từ tin nhắn mới nhất
+     * tin nhắn trong trang được sắp xếp từ cũ đến mới giống api phân trang cũ
+     */
+    public CursorPageDto<MessageDto> getMessagesBefore(Inbox inbox, String cursor, int size) {
+        size = Math.max(1, Math.min(size, maxSize));
+        var position = cursor == null || cursor.isBlank() ? null : decode(cursor);
+        if (roomService.isFanOutOnRead(inbox.getRoomId()))
+            return getRoomMessagesBefore(inbox, position, size);
+
+        List<Criteria> conditions = new ArrayList<>();
+        conditions.add(Criteria.where("inboxId").is(inbox.getId()));
+        if (position != null)
+            conditions.add(new Criteria().orOperator(Criteria.where("messageCreateAt").lt(position.createAt),
+                    Criteria.where("messageCreateAt").is(position.createAt).and("_id").lt(position.id)));
+        if (inbox.getClearedBefore() != null)
+            conditions.add(Criteria.where("messageCreateAt").gt(inbox.getClearedBefore()));
+        var query = Query.query(new Criteria().andOperator(conditions.toArray(new Criteria[0])))
+                .with(Sort.by(Sort.Direction.DESC, "messageCreateAt", "_id"))
+                .limit(size + 1);
+        List<InboxMessage> inboxMessages = mongoTemplate.find(query, InboxMessage.class);
+
+        // lấy dư một entry để biết còn trang tiếp theo hay không
+        var hasNext = inboxMessages.size() > size;
+        if (hasNext)
+            inboxMessages = inboxMessages.subList(0, size);
+        if (inboxMessages.isEmpty())
+            return new CursorPageDto<>(new ArrayList<>(), null, false);
+
+        List<String> messageIds = inboxMessages.stream().map(InboxMessage::getMessageId)
+                .collect(Collectors.toList());
+        Map<String, Message> messages = new HashMap<>();
+        messageRepository.findAllById(messageIds).forEach(x -> messages.put(x.getId(), x));
+        // giữ thứ tự của inboxMessage
+        List<Message> ordered = messageIds.stream().map(messages::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+
+        List<MessageDto> dto = messageMapper.toMessageDtos(ordered);
+        Collections.reverse(dto);
+
+        var last = inboxMessages.get(inboxMessages.size() - 1);
+        return new CursorPageDto<>(dto, hasNext ? encode(last.getMessageCreateAt(), last.getId()) : null, hasNext);
+    }
+
+    private CursorPageDto<MessageDto> getRoomMessagesBefore(Inbox inbox, Position position, int size) {
+        List<Criteria> conditions = roomConditions(inbox);
+        if (position != null)
+            conditions.add(new Criteria().orOperator(Criteria.where("createAt").lt(position.createAt),
+                    Criteria.where("createAt").is(position.createAt).and("_id").lt(position.id)));
+        var query = Query.query(new Criteria().andOperator(conditions.toArray(new Criteria[0])))
+                .with(Sort.by(Sort.Direction.DESC, "createAt", "_id"))
+                .limit(size + 1);
+        List<Message> messages = mongoTemplate.find(query, Message.class);
+
+        var hasNext = messages.size() > size;
+        if (hasNext)
+            messages = messages.subList(0, size);
+        if (messages.isEmpty())
+            return new CursorPageDto<>(new ArrayList<>(), null, false);
+
+        List<MessageDto> dto = messageMapper.toMessageDtos(messages);
+        Collections.reverse(dto);
+
+        var last = messages.get(messages.size() - 1);
+        return new CursorPageDto<>(dto, hasNext ? encode(last.getCreateAt(), last.getId()) : null, hasNext);
+    }
+
+    /**
+     * phân trang theo skip/limit cho api cũ trong room fanOutOnRead, sắp xếp theo createAt giảm dần
+     */
+    public Page<Message> getRoomMessagePage(Inbox inbox, Pageable pageable) {
+        var query = Query.query(new Criteria().andOperator(roomConditions(inbox).toArray(new Criteria[0])));
+        long total = mongoTemplate.count(query, Message.class);
+        query.with(pageable).with(Sort.by(Sort.Direction.DESC, "createAt", "_id"));
+        return new PageImpl<>(mongoTemplate.find(query, Message.class), pageable, total);
+    }
+
+    /**
+     * lấy tối đa size tin nhắn của room có seq lớn hơn afterSeq trên index {roomId: 1, seq: -1},
+     * bỏ các tin nhắn không có trong inbox.
+     * nextCursor là seq của tin nhắn cuối đã đọc, truyền lại vào afterSeq để lấy trang tiếp theo
+     * <p>
+     * seq được cấp trước khi insert nên tin nhắn seq lớn hơn có thể được ghi trước.
+     * khi gặp khoảng trống mà tin nhắn sau khoảng trống còn mới hơn settle-window thì dừng trước khoảng trống,
+     * để cursor không vượt qua seq chưa được ghi. khoảng trống cũ hơn (tin nhắn cũ không có seq,
+     * lưu tin nhắn thất bại sau khi đã cấp seq) thì bỏ qua
+     */
+    public CursorPageDto<MessageDto> getMessagesAfterSeq(Inbox inbox, long afterSeq, int size) {
+        size = Math.max(1, Math.min(size, maxSize));
+
+        var query = Query.query(Criteria.where("roomId").is(inbox.getRoomId()).and("seq").gt(afterSeq))
+                .with(Sort.by(Sort.Direction.ASC, "seq"))
+                .limit(size + 1);
+        List<Message> messages = mongoTemplate.find(query, Message.class);
+        var hasNext = messages.size() > size;
+        if (hasNext)
+            messages = messages.subList(0, size);
+
+        var settled = new Date(System.currentTimeMillis() - settleWindow.toMillis());
+        var expected = afterSeq + 1;
+        var read = 0;
+        for (Message message : messages) {
+            if (message.getSeq() != expected && message.getCreateAt() != null && message.getCreateAt().after(settled)) {
+                hasNext = false;
+                break;
+            }
+            expected = message.getSeq() + 1;
+            read++;
+        }
+        messages = messages.subList(0, read);
+        if (messages.isEmpty())
+            return new CursorPageDto<>(new ArrayList<>(), String.valueOf(afterSeq), false);
+
+        List<Message> visible = filterVisible(messages, Map.of(inbox.getRoomId(), inbox));
+        var last = messages.get(messages.size() - 1);
+        return new CursorPageDto<>(messageMapper.toMessageDtos(visible), String.valueOf(last.getSeq()), hasNext);
+    }
+
+    /**
+     * bỏ các tin nhắn không có trong inbox của user (gửi trước khi user vào room, đã xóa cuộc trò chuyện):
+     * room fanOutOnRead so sánh createAt với clearedBefore và leftAt,
+     * các room khác kiểm tra bằng một truy vấn $in trên inboxMessage
+     *
+     * @param inboxOfRoom roomId -> inbox của user
+     */
+    public List<Message> filterVisible(List<Message> messages, Map<String, Inbox> inboxOfRoom) {
+        if (messages.isEmpty())
+            return messages;
+        Set<String> fanOutOnReadRoomIds = roomService.fanOutOnReadRoomIds(messages.stream()
+                .map(Message::getRoomId).collect(Collectors.toSet()));
+
+        List<Message> linked = messages.stream()
+                .filter(x -> ! fanOutOnReadRoomIds.contains(x.getRoomId()))
+                .collect(Collectors.toList());
+        Set<String> visibleIds = new HashSet<>();
+        if (! linked.isEmpty()) {
+            List<String> inboxIds = linked.stream().map(x -> inboxOfRoom.get(x.getRoomId()).getId())
+                    .distinct().collect(Collectors.toList());
+            List<String> messageIds = linked.stream().map(Message::getId).collect(Collectors.toList());
+            var query = Query.query(Criteria.where("inboxId").in(inboxIds).and("messageId").in(messageIds));
+            query.fields().include("messageId");
+            mongoTemplate.find(query, InboxMessage.class).forEach(x -> visibleIds.add(x.getMessageId()));
+        }
+        return messages.stream()
+                .filter(x -> {
+                    var inbox = inboxOfRoom.get(x.getRoomId());
+                    if (! fanOutOnReadRoomIds.contains(x.getRoomId()))
+                        return visibleIds.contains(x.getId()) && afterClear(inbox, x.getCreateAt());
+                    return afterClear(inbox, x.getCreateAt())
+                            && (inbox.getLeftAt() == null || ! x.getCreateAt().after(inbox.getLeftAt()));
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return tin nhắn nếu có trong inbox, ngược lại null
+     */
+    public Message findVisible(Inbox inbox, String messageId) {
+        var message = messageRepository.findById(messageId).orElse(null);
+        if (message == null || ! inbox.getRoomId().equals(message.getRoomId()))
+            return null;
+        List<Message> visible = filterVisible(List.of(message), Map.of(inbox.getRoomId(), inbox));
+        return visible.isEmpty() ? null : message;
+    }
+
+    private static boolean afterClear(Inbox inbox, Date createAt) {
+        return inbox.getClearedBefore() == null || (createAt != null && createAt.after(inbox.getClearedBefore()));
+    }
+
+    /**
+     * điều kiện tin nhắn của room fanOutOnRead hiển thị với inbox
+     */
+    private static List<Criteria> roomConditions(Inbox inbox) {
+        List<Criteria> conditions = new ArrayList<>();
+        conditions.add(Criteria.where("roomId").is(inbox.getRoomId()));
+        if (inbox.getClearedBefore() != null)
+            conditions.add(Criteria.where("createAt").gt(inbox.getClearedBefore()));
+        if (inbox.getLeftAt() != null)
+            conditions.add(Criteria.where("createAt").lte(inbox.getLeftAt()));
+        return conditions;
+    }
+
+    static String encode(Date createAt, String id) {
+        var value = createAt.getTime() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Position decode(String cursor) {
+        try {
+            var value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = value.indexOf(':');
+            var createAt = new Date(Long.parseLong(value.substring(0, separator)));
+            var id = new ObjectId(value.substring(separator + 1));
+            return new Position(createAt, id);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new MyException("Lỗi: cursor không hợp lệ");
+        }
+    }
+
+    /**
+     * vị trí (createAt, _id) trong cursor, dùng chung với MessageSearchService
+     */
+    static class Position {
+        final Date createAt;
+        final ObjectId id;
+
+        Position(Date createAt, ObjectId id) {
+            this.createAt = createAt;
+            this.id = id;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.CursorPageDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * tìm kiếm nội dung tin nhắn trong các cuộc trò chuyện của user
+ * <p>
+ * mỗi tin nhắn văn bản lưu searchTokens là các từ đã bỏ dấu của content (TextNormalizer),
+ * được ghi cùng lệnh insert message và bỏ đi khi gỡ tin nhắn, index multikey
+ * {searchTokens: 1, roomId: 1, createAt: -1} đóng vai trò chỉ mục ngược nên không cần dựng lại khi khởi động
+ * <p>
+ * kết quả lọc qua MessageHistoryService.filterVisible (inboxMessage, clearedBefore, leftAt)
+ * nên user chỉ thấy tin nhắn có trong inbox của mình, phân trang theo cursor (createAt, _id) từ mới đến cũ
+ */
+@Service
+public class MessageSearchService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageHistoryService messageHistoryService;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Value("${chat.search.message.max-size:50}")
+    private int maxSize;
+
+    /**
+     * số tin nhắn khớp từ khóa đọc tối đa trong một lần tìm, giới hạn thời gian khi phần lớn bị lọc bỏ
+     */
+    @Value("${chat.search.message.max-scan:1000}")
+    private int maxScan;
+
+    @Value("${chat.search.message.max-tokens:200}")
+    private int maxTokens;
+
+    @Value("${chat.search.message.max-token-length:30}")
+    private int maxTokenLength;
+
+    /**
+     * các từ dùng để tìm kiếm của tin nhắn, chỉ tin nhắn văn bản mới có
+     */
+    public Set<String> tokensOf(Message message) {
+        if (message.getType() != null && ! "TEXT".equalsIgnoreCase(message.getType()))
+            return null;
+        if (Boolean.TRUE.equals(message.getDeleted()))
+            return null;
+        return TextNormalizer.tokens(message.getContent()).stream()
+                .map(x -> x.length() > maxTokenLength ? x.substring(0, maxTokenLength) : x)
+                .distinct()
+                .limit(maxTokens)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * tìm tin nhắn chứa tất cả các từ trong keyword
+     *
+     * @param roomId null thì tìm trong tất cả cuộc trò chuyện của user
+     */
+    public CursorPageDto<MessageDto> search(String userId, String keyword, String roomId, String cursor, int size) {
+        size = Math.max(1, Math.min(size, maxSize));
+        List<String> terms = TextNormalizer.tokens(keyword).stream()
+                .map(x -> x.length() > maxTokenLength ? x.substring(0, maxTokenLength) : x)
+                .distinct()
+                .collect(Collectors.toList());
+        if (terms.isEmpty())
+            return new CursorPageDto<>(new ArrayList<>(), null, false);
+
+        var inboxCriteria = Criteria.where("ofUserId").is(userId);
+        if (roomId != null)
+            inboxCriteria.and("roomId").is(roomId);
+        var inboxQuery = Query.query(inboxCriteria);
+        inboxQuery.fields().include("_id").include("roomId").include("clearedBefore").include("leftAt");
+        Map<String, Inbox> inboxOfRoom = mongoTemplate.find(inboxQuery, Inbox.class).stream()
+                .collect(Collectors.toMap(Inbox::getRoomId, Function.identity(), (x, y) -> x));
+        if (inboxOfRoom.isEmpty())
+            return new CursorPageDto<>(new ArrayList<>(), null, false);
+
+        var position = cursor == null || cursor.isBlank() ? null : MessageHistoryService.decode(cursor);
+        List<Message> result = new ArrayList<>();
+        var scanned = 0;
+        Message lastRead = null;
+        boolean hasNext;
+        // đọc theo lô cho đến khi đủ size tin nhắn hiển thị với user, hết tin nhắn khớp hoặc hết giới hạn đọc,
+        // cursor là tin nhắn cuối đã đọc (kể cả bị lọc bỏ) nên trang sau không đọc lại
+        while (true) {
+            var batch = Math.min(size * 2, maxScan - scanned);
+            List<Criteria> conditions = new ArrayList<>();
+            conditions.add(Criteria.where("searchTokens").all(terms));
+            conditions.add(Criteria.where("roomId").in(inboxOfRoom.keySet()));
+            if (position != null)
+                conditions.add(new Criteria().orOperator(Criteria.where("createAt").lt(position.createAt),
+                        Criteria.where("createAt").is(position.createAt).and("_id").lt(position.id)));
+            var query = Query.query(new Criteria().andOperator(conditions.toArray(new Criteria[0])))
+                    .with(Sort.by(Sort.Direction.DESC, "createAt", "_id"))
+                    .limit(batch);
+            List<Message> messages = mongoTemplate.find(query, Message.class);
+            scanned += messages.size();
+            var exhausted = messages.size() < batch;
+
+            Set<String> visibleIds = messageHistoryService.filterVisible(messages, inboxOfRoom).stream()
+                    .map(Message::getId).collect(Collectors.toSet());
+            var read = 0;
+            for (Message message : messages) {
+                if (result.size() == size)
+                    break;
+                if (visibleIds.contains(message.getId()))
+                    result.add(message);
+                lastRead = message;
+                read++;
+            }
+            if (result.size() == size) {
+                hasNext = read < messages.size() || ! exhausted;
+                break;
+            }
+            if (exhausted) {
+                hasNext = false;
+                break;
+            }
+            if (scanned >= maxScan) {
+                hasNext = true;
+                break;
+            }
+            position = new MessageHistoryService.Position(lastRead.getCreateAt(), new ObjectId(lastRead.getId()));
+        }
+
+        var nextCursor = hasNext ? MessageHistoryService.encode(lastRead.getCreateAt(), lastRead.getId()) : null;
+        return new CursorPageDto<>(messageMapper.toMessageDtos(result), nextCursor, hasNext);
+    }
+
+}
@@ -1,13 +1,173 @@
 package iuh.dhktpm14.cnm.chatappmongo.service;
 
+import com.mongodb.bulk.BulkWriteResult;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
 import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 @Service
 public class MessageService {
 
     @Autowired
     private MessageRepository messageRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RoomService roomService;
+
+    @Autowired
+    private UnreadService unreadService;
+
+    @Autowired
+    private MessageSearchService messageSearchService;
+
+    /**
+     * room có số thành viên từ ngưỡng này trở lên chuyển sang fanOutOnRead
+     */
+    @Value("${chat.room.fan-out-on-read-threshold:200}")
+    private int fanOutOnReadThreshold;
+
+    /**
+     * lưu tin nhắn mới vào room và liên kết tin nhắn với inbox của tất cả thành viên
+     * số lần truy vấn đến mongo không phụ thuộc vào số thành viên trong room:
+     * 1 lần tìm inbox ($in), 1 lần bulk upsert inbox, 1 lần cấp seq cùng với ghi lastMessage của room,
+     * 1 lần insert message, 1 lần insertMany inboxMessage và 1 lần cập nhật số tin nhắn chưa đọc
+     * <p>
+     * room fanOutOnRead không tìm inbox và không tạo inboxMessage, chỉ một lệnh updateMulti hiện lại các inbox đang trống
+     */
+    public Message saveMessageToRoom(Message message, Room room) {
+        List<String> memberIds = room.getMembers().stream()
+                .map(Member::getUserId)
+                .collect(Collectors.toList());
+        if (memberIds.isEmpty())
+            return null;
+
+        var fanOutOnRead = Boolean.TRUE.equals(room.getFanOutOnRead());
+        Map<String, String> inboxIds = null;
+        if (fanOutOnRead)
+            showInboxes(room.getId(), memberIds);
+        else {
+            inboxIds = findOrCreateInboxes(room.getId(), memberIds);
+            // room vừa vượt ngưỡng: inbox đã được tạo đủ ở trên, từ tin nhắn này không tạo inboxMessage nữa
+            if (memberIds.size() >= fanOutOnReadThreshold) {
+                roomService.enableFanOutOnRead(room.getId(), message.getCreateAt());
+                fanOutOnRead = true;
+            }
+        }
+
+        // id được tạo trước để ghi lastMessage cùng lệnh cấp seq
+        if (message.getId() == null)
+            message.setId(new ObjectId().toHexString());
+        message.setSeq(roomService.appendMessage(message));
+        message.setSearchTokens(messageSearchService.tokensOf(message));
+        messageRepository.save(message);
+
+        if (! fanOutOnRead) {
+            List<InboxMessage> inboxMessages = new ArrayList<>(inboxIds.size());
+            for (String inboxId : inboxIds.values()) {
+                inboxMessages.add(InboxMessage.builder()
+                        .inboxId(inboxId)
+                        .messageId(message.getId())
+                        .messageCreateAt(message.getCreateAt())
+                        .build());
+            }
+            // một lệnh insertMany cho tất cả inboxMessage
+            mongoTemplate.insert(inboxMessages, InboxMessage.class);
+        }
+
+        unreadService.onMessageSaved(room.getId(), memberIds, message.getSenderId(), message.getSeq());
+        return message;
+    }
+
+    /**
+     * set empty=false cho các inbox đang trống của thành viên bằng một lệnh updateMulti,
+     * inbox của thành viên được tạo khi vào nhóm (RoomService.createInboxesAndReadTrackings)
+     */
+    private void showInboxes(String roomId, List<String> memberIds) {
+        var criteria = Criteria.where("roomId").is(roomId).and("ofUserId").in(memberIds).and("empty").is(true);
+        mongoTemplate.updateMulti(Query.query(criteria), new Update().set("empty", false), Inbox.class);
+    }
+
+    /**
+     * tìm inbox của tất cả thành viên bằng một truy vấn $in,
+     * inbox nào chưa có thì tạo mới, inbox nào đang trống thì set empty=false,
+     * cả hai việc này được gộp vào một lệnh bulk unordered
+     *
+     * @return map userId -> inboxId
+     */
+    private Map<String, String> findOrCreateInboxes(String roomId, List<String> memberIds) {
+        var criteria = Criteria.where("roomId").is(roomId).and("ofUserId").in(memberIds);
+        var query = Query.query(criteria);
+        query.fields().include("_id").include("ofUserId").include("empty");
+        List<Inbox> existing = mongoTemplate.find(query, Inbox.class);
+
+        Map<String, String> inboxIds = new HashMap<>();
+        List<String> emptyInboxIds = new ArrayList<>();
+        for (Inbox inbox : existing) {
+            inboxIds.putIfAbsent(inbox.getOfUserId(), inbox.getId());
+            if (inbox.isEmpty())
+                emptyInboxIds.add(inbox.getId());
+        }
+
+        List<String> missing = memberIds.stream()
+                .filter(x -> ! inboxIds.containsKey(x))
+                .collect(Collectors.toList());
+        if (missing.isEmpty() && emptyInboxIds.isEmpty())
+            return inboxIds;
+
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Inbox.class);
+        for (String userId : missing) {
+            var upsertCriteria = Criteria.where("ofUserId").is(userId).and("roomId").is(roomId);
+            var update = new Update();
+            update.set("empty", false);
+            ops.upsert(Query.query(upsertCriteria), update);
+        }
+        if (! emptyInboxIds.isEmpty()) {
+            var update = new Update();
+            update.set("empty", false);
+            ops.updateMulti(Query.query(Criteria.where("_id").in(emptyInboxIds)), update);
+        }
+        // unique {roomId, ofUserId}: inbox được tạo cùng lúc bởi request khác thì upsert bị lỗi trùng và được tìm lại ở dưới
+        BulkWriteResult result = BulkWriteSupport.executeIgnoringDuplicates(ops);
+
+        /*
+        id của inbox mới tạo được trả về trong kết quả bulk theo thứ tự của request,
+        các upsert được thêm vào trước nên index trùng với vị trí trong list missing
+         */
+        result.getUpserts().forEach(x ->
+                inboxIds.put(missing.get(x.getIndex()), x.getId().asObjectId().getValue().toHexString()));
+
+        // inbox vừa được tạo bởi một request khác cùng lúc (upsert không tạo mới hoặc lỗi trùng) thì tìm lại
+        if (inboxIds.size() < memberIds.size()) {
+            List<String> notResolved = missing.stream()
+                    .filter(x -> ! inboxIds.containsKey(x))
+                    .collect(Collectors.toList());
+            var retryQuery = Query.query(Criteria.where("roomId").is(roomId).and("ofUserId").in(notResolved));
+            retryQuery.fields().include("_id").include("ofUserId");
+            mongoTemplate.find(retryQuery, Inbox.class)
+                    .forEach(x -> inboxIds.putIfAbsent(x.getOfUserId(), x.getId()));
+        }
+        return inboxIds;
+    }
+
 }
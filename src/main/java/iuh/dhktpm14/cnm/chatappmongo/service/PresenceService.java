@@ -0,0 +1,217 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.chat.UserMessageSender;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.ClusterUserRegistry;
+import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.OnlineStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * trạng thái online của user
+ * <p>
+ * lưu tất cả session websocket của từng user trong bộ nhớ, user ONLINE khi còn ít nhất một session,
+ * nên đóng một tab khi còn tab khác không làm user bị OFFLINE
+ * <p>
+ * trạng thái được đọc từ bộ nhớ, còn việc ghi vào database được gom lại và ghi định kỳ bằng một lệnh bulk,
+ * user kết nối rồi ngắt nhiều lần trong một chu kỳ chỉ được ghi trạng thái cuối cùng
+ * <p>
+ * khi chạy nhiều node (chat.broker.mode=bus), user đóng session cuối cùng trên node này
+ * nhưng vẫn còn session trên node khác thì không bị ghi OFFLINE
+ */
+@Service
+public class PresenceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceService.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserProfileCache userProfileCache;
+
+    @Autowired
+    private UserMessageSender userMessageSender;
+
+    /**
+     * chỉ có khi chat.broker.mode=bus
+     */
+    @Autowired(required = false)
+    private ClusterUserRegistry clusterUserRegistry;
+
+    @Value("${chat.presence.flush-interval:2s}")
+    private Duration flushInterval;
+
+    /**
+     * userId -> các sessionId đang kết nối
+     */
+    private final Map<String, Set<String>> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * userId -> thời điểm offline, chỉ giữ đến khi đã ghi vào database
+     */
+    private final Map<String, Date> offlineAt = new ConcurrentHashMap<>();
+
+    /**
+     * userId -> trạng thái chưa ghi vào database
+     */
+    private final Map<String, Presence> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void init() {
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(1, flushInterval.toMillis());
+        flusher.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flush();
+    }
+
+    public void connect(String userId, String sessionId) {
+        if (userId == null || sessionId == null)
+            return;
+        // cập nhật trạng thái trong compute để connect và disconnect của cùng một user không bị đảo thứ tự
+        sessions.compute(userId, (id, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            if (set.isEmpty()) {
+                offlineAt.remove(id);
+                pending.put(id, new Presence(OnlineStatus.ONLINE, null));
+            }
+            set.add(sessionId);
+            return set;
+        });
+    }
+
+    public void disconnect(String userId, String sessionId) {
+        if (userId == null || sessionId == null)
+            return;
+        var lastSession = new AtomicBoolean();
+        sessions.computeIfPresent(userId, (id, set) -> {
+            set.remove(sessionId);
+            if (! set.isEmpty())
+                return set;
+            lastSession.set(true);
+            return null;
+        });
+        // tìm node khác ngoài compute vì registry có thể đọc database
+        if (! lastSession.get() || isOnlineOnOtherNode(userId))
+            return;
+        // user kết nối lại trong lúc kiểm tra thì giữ ONLINE
+        sessions.compute(userId, (id, set) -> {
+            if (set != null)
+                return set;
+            var now = new Date();
+            offlineAt.put(id, now);
+            pending.put(id, new Presence(OnlineStatus.OFFLINE, now));
+            return null;
+        });
+    }
+
+    private boolean isOnlineOnOtherNode(String userId) {
+        if (clusterUserRegistry == null)
+            return false;
+        try {
+            return ! clusterUserRegistry.findNodes(List.of(userId), userMessageSender.getNodeId()).isEmpty();
+        } catch (Exception e) {
+            logger.error("Cannot check sessions of user {} on other nodes: {}", userId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return trạng thái trong bộ nhớ, null nếu user chưa kết nối kể từ khi khởi động
+     * hoặc trạng thái offline đã được ghi vào database (khi đó đọc từ database)
+     */
+    public OnlineStatus getOnlineStatus(String userId) {
+        if (userId == null)
+            return null;
+        if (sessions.containsKey(userId))
+            return OnlineStatus.ONLINE;
+        return offlineAt.containsKey(userId) ? OnlineStatus.OFFLINE : null;
+    }
+
+    public Date getLastOnline(String userId) {
+        return userId == null ? null : offlineAt.get(userId);
+    }
+
+    /**
+     * ghi các trạng thái đang chờ vào database bằng một lệnh bulk unordered
+     */
+    void flush() {
+        if (pending.isEmpty())
+            return;
+        Map<String, Presence> flushed = new HashMap<>();
+        try {
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+            for (String userId : pending.keySet()) {
+                var presence = pending.remove(userId);
+                if (presence == null)
+                    continue;
+                var update = new Update();
+                update.set("onlineStatus", presence.status);
+                if (presence.lastOnline == null)
+                    update.unset("lastOnline");
+                else
+                    update.set("lastOnline", presence.lastOnline);
+                ops.updateOne(Query.query(Criteria.where("_id").is(userId)), update);
+                flushed.put(userId, presence);
+            }
+            if (flushed.isEmpty())
+                return;
+            ops.execute();
+
+            /*
+            database đã có trạng thái mới nên xóa profile cũ trong cache,
+            thời điểm offline đã ghi thì không cần giữ trong bộ nhớ nữa
+             */
+            flushed.forEach((userId, presence) -> {
+                if (presence.lastOnline != null)
+                    offlineAt.remove(userId, presence.lastOnline);
+                userProfileCache.evict(userId);
+            });
+        } catch (Exception e) {
+            // ghi lại ở chu kỳ sau, trừ khi trạng thái của user đã thay đổi
+            flushed.forEach(pending::putIfAbsent);
+            logger.error("Presence flush failed: {}", e.getMessage());
+        }
+    }
+
+    private static class Presence {
+        private final OnlineStatus status;
+        private final Date lastOnline;
+
+        Presence(OnlineStatus status, Date lastOnline) {
+            this.status = status;
+            this.lastOnline = lastOnline;
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.ReactionDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.MessageReaction;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Reaction;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import iuh.dhktpm14.cnm.chatappmongo.repository.MessageReactionRepository;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * bày tỏ cảm xúc về tin nhắn
+ * <p>
+ * mỗi user có một document messageReaction cho mỗi tin nhắn (unique {messageId, userId}),
+ * message chỉ lưu số lượng theo từng loại cảm xúc (reactionCounts) để hiển thị danh sách tin nhắn,
+ * nên kích thước message không tăng theo số lần bày tỏ cảm xúc
+ * <p>
+ * tin nhắn cũ còn lưu mảng reactions được chuyển sang messageReaction trong lần đầu được bày tỏ cảm xúc
+ * hoặc bởi MessageBackfillJob, xem danh sách người bày tỏ cảm xúc của tin nhắn chưa chuyển thì đọc từ mảng reactions
+ * (không ghi khi đọc), giống MessageMapper đếm reactionCounts từ mảng reactions
+ */
+@Service
+public class ReactionService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageReactionRepository messageReactionRepository;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    /**
+     * bày tỏ cảm xúc, nếu user đã bày tỏ cảm xúc khác thì thay thế
+     *
+     * @return cảm xúc trước đó của user, null nếu chưa có
+     */
+    public ReactionType react(String messageId, String userId, ReactionType type) {
+        migrateLegacy(messageId);
+        MessageReaction previous;
+        try {
+            previous = upsert(messageId, userId, type);
+        } catch (DuplicateKeyException e) {
+            // hai request cùng upsert, request còn lại đã tạo document nên lần này sẽ cập nhật
+            previous = upsert(messageId, userId, type);
+        }
+        if (previous != null && previous.getType() == type)
+            return type;
+
+        var update = new Update();
+        update.inc(countField(type), 1);
+        if (previous != null && previous.getType() != null)
+            update.inc(countField(previous.getType()), -1);
+        update.set("updateAt", new Date());
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(messageId)), update, Message.class);
+        return previous == null ? null : previous.getType();
+    }
+
+    /**
+     * bỏ cảm xúc của user
+     *
+     * @return cảm xúc đã bỏ, null nếu user chưa bày tỏ cảm xúc
+     */
+    public ReactionType unreact(String messageId, String userId) {
+        migrateLegacy(messageId);
+        var removed = mongoTemplate.findAndRemove(reactionQuery(messageId, userId), MessageReaction.class);
+        if (removed == null || removed.getType() == null)
+            return null;
+        var update = new Update();
+        update.inc(countField(removed.getType()), -1);
+        update.set("updateAt", new Date());
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(messageId)), update, Message.class);
+        return removed.getType();
+    }
+
+    /**
+     * danh sách người bày tỏ cảm xúc theo trang, profile của cả trang lấy bằng một truy vấn $in
+     *
+     * @param type null thì lấy tất cả loại cảm xúc
+     */
+    public Page<ReactionDto> getReactions(String messageId, ReactionType type, Pageable pageable) {
+        Page<MessageReaction> page = legacyPage(messageId, type, pageable);
+        if (page == null)
+            page = type == null
+                    ? messageReactionRepository.findAllByMessageIdOrderByReactAtDescIdDesc(messageId, pageable)
+                    : messageReactionRepository.findAllByMessageIdAndTypeOrderByReactAtDescIdDesc(messageId, type, pageable);
+        Map<String, UserProfileDto> users = userMapper.toUserProfileDtos(page.getContent().stream()
+                .map(MessageReaction::getUserId).collect(Collectors.toSet()));
+        return page.map(x -> {
+            var dto = new ReactionDto();
+            dto.setType(x.getType());
+            dto.setReactByUser(users.get(x.getUserId()));
+            dto.setReactAt(x.getReactAt());
+            return dto;
+        });
+    }
+
+    /**
+     * trang người bày tỏ cảm xúc của tin nhắn cũ chưa chuyển, người bày tỏ sau cùng lên đầu
+     *
+     * @return null nếu tin nhắn không còn mảng reactions
+     */
+    private Page<MessageReaction> legacyPage(String messageId, ReactionType type, Pageable pageable) {
+        var query = Query.query(Criteria.where("_id").is(messageId).and("reactions").exists(true));
+        query.fields().include("reactions");
+        var message = mongoTemplate.findOne(query, Message.class);
+        if (message == null || message.getReactions() == null)
+            return null;
+
+        List<MessageReaction> reactions = new ArrayList<>();
+        lastOfUser(message.getReactions()).forEach((userId, x) -> {
+            if (type == null || type == x)
+                reactions.add(MessageReaction.builder().messageId(messageId).userId(userId).type(x).build());
+        });
+        Collections.reverse(reactions);
+        if (pageable.isUnpaged())
+            return new PageImpl<>(reactions, pageable, reactions.size());
+        int from = (int) Math.min(pageable.getOffset(), reactions.size());
+        int to = Math.min(from + pageable.getPageSize(), reactions.size());
+        return new PageImpl<>(reactions.subList(from, to), pageable, reactions.size());
+    }
+
+    private MessageReaction upsert(String messageId, String userId, ReactionType type) {
+        var update = new Update();
+        update.set("type", type);
+        update.set("reactAt", new Date());
+        return mongoTemplate.findAndModify(reactionQuery(messageId, userId), update,
+                FindAndModifyOptions.options().upsert(true).returnNew(false), MessageReaction.class);
+    }
+
+    /**
+     * chuyển mảng reactions của tin nhắn cũ sang messageReaction (mỗi user giữ cảm xúc cuối cùng)
+     * và tính lại reactionCounts từ messageReaction.
+     * react/unreact chỉ ghi messageReaction sau khi mảng reactions đã bị xóa, nên reactionCounts
+     * được ghi cùng lệnh xóa mảng (điều kiện reactions còn tồn tại): chỉ một request ghi được
+     * và không có $inc nào chen vào giữa lúc đếm và lúc ghi
+     *
+     * @return false nếu tin nhắn không còn mảng reactions hoặc request khác đã chuyển trước
+     */
+    boolean migrateLegacy(String messageId) {
+        var query = Query.query(Criteria.where("_id").is(messageId).and("reactions").exists(true));
+        query.fields().include("reactions");
+        var message = mongoTemplate.findOne(query, Message.class);
+        if (message == null)
+            return false;
+        Map<String, ReactionType> lastOfUser = message.getReactions() == null
+                ? Map.of() : lastOfUser(message.getReactions());
+
+        if (! lastOfUser.isEmpty()) {
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MessageReaction.class);
+            var now = new Date();
+            // setOnInsert để các request cùng chuyển không ghi đè lẫn nhau
+            lastOfUser.forEach((userId, type) -> ops.upsert(reactionQuery(messageId, userId),
+                    new Update().setOnInsert("type", type).setOnInsert("reactAt", now)));
+            BulkWriteSupport.executeIgnoringDuplicates(ops);
+        }
+
+        var aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("messageId").is(messageId)),
+                Aggregation.group("type").count().as("count"));
+        Map<String, Long> counts = new LinkedHashMap<>();
+        mongoTemplate.aggregate(aggregation, MessageReaction.class, Document.class).forEach(x -> {
+            if (x.get("_id") != null)
+                counts.put(x.get("_id").toString(), ((Number) x.get("count")).longValue());
+        });
+        // luôn có $unset nên update không bị coi là replace dù không đếm được cảm xúc nào
+        var update = new Update().unset("reactions").set("reactionCounts", counts);
+        var guard = Query.query(Criteria.where("_id").is(messageId).and("reactions").exists(true));
+        return mongoTemplate.updateFirst(guard, update, Message.class).getModifiedCount() > 0;
+    }
+
+    /**
+     * cảm xúc cuối cùng của mỗi user trong mảng reactions, theo thứ tự lần bày tỏ cuối của user
+     */
+    private static Map<String, ReactionType> lastOfUser(List<Reaction> reactions) {
+        Map<String, ReactionType> result = new LinkedHashMap<>();
+        for (Reaction reaction : reactions)
+            if (reaction.getReactByUserId() != null && reaction.getType() != null) {
+                result.remove(reaction.getReactByUserId());
+                result.put(reaction.getReactByUserId(), reaction.getType());
+            }
+        return result;
+    }
+
+    private static Query reactionQuery(String messageId, String userId) {
+        return Query.query(Criteria.where("messageId").is(messageId).and("userId").is(userId));
+    }
+
+    private static String countField(ReactionType type) {
+        return "reactionCounts." + type.name();
+    }
+
+}
@@ -0,0 +1,133 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * bổ sung dữ liệu cho các room đã có trước khi thêm field mới
+ * <p>
+ * lastMessage: lấy tin nhắn cuối của từng room chưa có lastMessage, ghi lại theo lô
+ * <p>
+ * memberCount: đếm số thành viên của từng room chưa có memberCount, ghi lại theo lô
+ * <p>
+ * chạy một lần khi khởi động trong luồng riêng, không chặn việc khởi động ứng dụng,
+ * room đã có dữ liệu thì bỏ qua nên chạy lại nhiều lần không sao
+ */
+@Component
+public class RoomBackfillJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomBackfillJob.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    @Autowired
+    private RoomService roomService;
+
+    @Value("${chat.room.backfill.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.room.backfill.batch-size:100}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (! enabled)
+            return;
+        var thread = new Thread(this::backfill, "room-backfill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void backfill() {
+        try {
+            long count = backfillLastMessage();
+            if (count > 0)
+                logger.info("Backfilled lastMessage of {} rooms", count);
+            count = backfillMemberCount();
+            if (count > 0)
+                logger.info("Backfilled memberCount of {} rooms", count);
+        } catch (Exception e) {
+            logger.error("Room backfill failed: {}", e.getMessage());
+        }
+    }
+
+    private long backfillLastMessage() {
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            var criteria = Criteria.where("lastMessage").exists(false);
+            if (lastId != null)
+                criteria.and("_id").gt(lastId);
+            var query = Query.query(criteria).with(Sort.by("_id")).limit(batchSize);
+            query.fields().include("_id");
+            List<Room> rooms = mongoTemplate.find(query, Room.class);
+            if (rooms.isEmpty())
+                return count;
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Room.class);
+            var updates = 0;
+            for (Room room : rooms) {
+                var lastMessage = messageRepository.getLastMessageOfRoom(room.getId());
+                if (lastMessage == null)
+                    continue;
+                var update = new Update();
+                update.set("lastMessage", roomService.toLastMessage(lastMessage));
+                // nếu trong lúc chạy đã có tin nhắn mới ghi lastMessage thì không ghi đè
+                ops.updateOne(Query.query(Criteria.where("_id").is(room.getId()).and("lastMessage").exists(false)), update);
+                updates++;
+            }
+            if (updates > 0)
+                ops.execute();
+            count += updates;
+            lastId = rooms.get(rooms.size() - 1).getId();
+        }
+    }
+
+    private long backfillMemberCount() {
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            var criteria = Criteria.where("memberCount").exists(false);
+            if (lastId != null)
+                criteria.and("_id").gt(lastId);
+            var query = Query.query(criteria).with(Sort.by("_id")).limit(batchSize);
+            query.fields().include("_id").include("version").include("members.userId");
+            List<Room> rooms = mongoTemplate.find(query, Room.class);
+            if (rooms.isEmpty())
+                return count;
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Room.class);
+            for (Room room : rooms) {
+                var update = new Update();
+                update.set("memberCount", room.getMembers() == null ? 0 : room.getMembers().size());
+                // thành viên thay đổi trong lúc chạy thì version tăng và memberCount đã được ghi, không ghi đè
+                ops.updateOne(Query.query(Criteria.where("_id").is(room.getId()).and("version").is(room.getVersion())
+                        .and("memberCount").exists(false)), update);
+            }
+            ops.execute();
+            count += rooms.size();
+            lastId = rooms.get(rooms.size() - 1).getId();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * cache room và danh sách id thành viên (HashSet) để kiểm tra thành viên trong O(1),
+ * tránh roomRepository.findById ở mỗi tin nhắn và mỗi request
+ * <p>
+ * room trong cache dùng chung nên không được sửa, muốn sửa thì đọc lại từ database.
+ * lastMessage trong room của cache có thể cũ, lấy tin nhắn cuối qua RoomService.getLastMessage
+ * <p>
+ * mỗi lần thay đổi thành viên room.version tăng lên và gọi invalidate(roomId, version mới).
+ * version mới được ghi lại (tombstone) nên một lần đọc chậm đã lấy bản cũ trước khi ghi
+ * sẽ không được đưa lại vào cache
+ * <p>
+ * số lần hit/miss xem tại /actuator/metrics/cache.gets?tag=cache:room
+ */
+@Component
+public class RoomCache extends AbstractMongoEventListener<Room> {
+
+    @Autowired
+    private RoomRepository roomRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.cache.room.max-size:10000}")
+    private long maxSize;
+
+    /**
+     * invalidate chỉ có tác dụng trên node hiện tại, ttl giới hạn thời gian các node khác dùng bản cũ
+     */
+    @Value("${chat.cache.room.ttl:30s}")
+    private Duration ttl;
+
+    private Cache<String, CachedRoom> cache;
+
+    /**
+     * roomId -> version nhỏ nhất được phép đưa vào cache
+     */
+    private Cache<String, Long> minVersions;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        // tombstone chỉ cần giữ lâu hơn thời gian một lần đọc database
+        minVersions = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "room");
+    }
+
+    /**
+     * @return room trong cache hoặc đọc từ database, null nếu không tồn tại
+     */
+    public Room getRoom(String roomId) {
+        var cached = getCached(roomId);
+        return cached == null ? null : cached.room;
+    }
+
+    /**
+     * @return id của các thành viên (không sửa được), rỗng nếu room không tồn tại
+     */
+    public Set<String> getMemberIds(String roomId) {
+        var cached = getCached(roomId);
+        return cached == null ? Collections.emptySet() : cached.memberIds;
+    }
+
+    public boolean isMember(String roomId, String userId) {
+        return userId != null && getMemberIds(roomId).contains(userId);
+    }
+
+    /**
+     * gọi sau khi thay đổi room, version là version mới của room sau khi ghi
+     */
+    public void invalidate(String roomId, long version) {
+        if (roomId == null)
+            return;
+        minVersions.asMap().merge(roomId, version, Math::max);
+        cache.invalidate(roomId);
+    }
+
+    private CachedRoom getCached(String roomId) {
+        if (roomId == null)
+            return null;
+        var cached = cache.getIfPresent(roomId);
+        if (cached != null)
+            return cached;
+
+        var room = roomRepository.findById(roomId).orElse(null);
+        if (room == null)
+            return null;
+        var loaded = new CachedRoom(room);
+        cache.asMap().compute(roomId, (id, existing) -> {
+            Long minVersion = minVersions.getIfPresent(id);
+            if (minVersion != null && loaded.version < minVersion)
+                return existing;
+            if (existing != null && existing.version >= loaded.version)
+                return existing;
+            return loaded;
+        });
+        return loaded;
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Room> event) {
+        var room = event.getSource();
+        invalidate(room.getId(), room.getVersion() == null ? 0 : room.getVersion());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Room> event) {
+        Object id = event.getSource().get("_id");
+        if (id != null)
+            cache.invalidate(id.toString());
+    }
+
+    private static class CachedRoom {
+        private final Room room;
+        private final Set<String> memberIds;
+        private final long version;
+
+        CachedRoom(Room room) {
+            this.room = room;
+            Set<String> ids = new HashSet<>();
+            if (room.getMembers() != null)
+                room.getMembers().stream().map(Member::getUserId).forEach(ids::add);
+            this.memberIds = Collections.unmodifiableSet(ids);
+            this.version = room.getVersion() == null ? 0 : room.getVersion();
+        }
+    }
+
+}
@@ -1,13 +1,455 @@
 package iuh.dhktpm14.cnm.chatappmongo.service;
 
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.LastMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.MyException;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.RoomNotFoundException;
 import iuh.dhktpm14.cnm.chatappmongo.repository.RoomRepository;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 @Service
 public class RoomService {
 
     @Autowired
     private RoomRepository roomRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private RoomCache roomCache;
+
+    @Autowired
+    private FriendSuggestionService friendSuggestionService;
+
+    /**
+     * số ký tự tối đa của content được lưu trong lastMessage của room
+     */
+    @Value("${chat.room.last-message-length:100}")
+    private int lastMessageLength;
+
+    /**
+     * số lần thử lại khi room bị thay đổi đồng thời (version không khớp)
+     */
+    @Value("${chat.room.membership-retries:5}")
+    private int membershipRetries;
+
+    public LastMessage toLastMessage(Message message) {
+        return LastMessage.builder()
+                .messageId(message.getId())
+                .seq(message.getSeq())
+                .senderId(message.getSenderId())
+                .type(message.getType())
+                .content(truncate(message.getContent()))
+                .createAt(message.getCreateAt())
+                .build();
+    }
+
+    /**
+     * cấp phát seq cho tin nhắn mới và ghi lastMessage của room trong cùng một lệnh findAndModify
+     * (update dạng pipeline), mỗi tin nhắn chỉ ghi document room một lần.
+     * messageSeq là bộ đếm duy nhất của room nên seq tăng dần theo thứ tự cấp phát trên mọi node
+     * và messageSeq luôn bằng seq lớn nhất đã cấp (dùng để tính số tin nhắn chưa đọc).
+     * lastMessage chỉ bị ghi đè khi tin nhắn mới hơn tin nhắn cuối hiện tại
+     * để hai tin nhắn gửi cùng lúc không ghi đè sai thứ tự
+     * <p>
+     * message phải có sẵn id vì lastMessage được ghi trước khi insert message
+     *
+     * @return seq của tin nhắn, bắt đầu từ 1
+     */
+    public long appendMessage(Message message) {
+        var lastMessage = new Document();
+        var summary = toLastMessage(message);
+        putLiteral(lastMessage, "messageId", summary.getMessageId());
+        lastMessage.put("seq", "$messageSeq");
+        putLiteral(lastMessage, "senderId", summary.getSenderId());
+        putLiteral(lastMessage, "type", summary.getType());
+        putLiteral(lastMessage, "content", summary.getContent());
+        putLiteral(lastMessage, "createAt", summary.getCreateAt());
+
+        var incSeq = new Document("$set", new Document("messageSeq",
+                new Document("$add", List.of(new Document("$ifNull", List.of("$messageSeq", 0L)), 1L))));
+        // room chưa có lastMessage thì "$lastMessage.createAt" là null, nhỏ hơn mọi createAt
+        var setLastMessage = new Document("$set", new Document("lastMessage", new Document("$cond", List.of(
+                new Document("$lte", List.of("$lastMessage.createAt", message.getCreateAt())),
+                lastMessage,
+                "$lastMessage"))));
+        var update = AggregationUpdate.from(List.of(context -> incSeq, context -> setLastMessage));
+
+        var query = Query.query(Criteria.where("_id").is(message.getRoomId()));
+        query.fields().include("messageSeq");
+        var room = mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Room.class);
+        if (room == null || room.getMessageSeq() == null)
+            throw new RoomNotFoundException();
+        return room.getMessageSeq();
+    }
+
+    /**
+     * giá trị do người dùng nhập (content bắt đầu bằng $) không được hiểu là field path trong pipeline
+     */
+    private static void putLiteral(Document document, String key, Object value) {
+        if (value != null)
+            document.put(key, new Document("$literal", value));
+    }
+
+    /**
+     * khi tin nhắn cuối bị gỡ thì cập nhật lại content của lastMessage
+     */
+    public void updateLastMessageContent(String roomId, String messageId, String content) {
+        var criteria = Criteria.where("_id").is(roomId).and("lastMessage.messageId").is(messageId);
+        var update = new Update();
+        update.set("lastMessage.content", truncate(content));
+        mongoTemplate.updateFirst(Query.query(criteria), update, Room.class);
+    }
+
+    /**
+     * chỉ lấy field lastMessage của room
+     */
+    public LastMessage getLastMessage(String roomId) {
+        var room = getMessageState(roomId);
+        return room == null ? null : room.getLastMessage();
+    }
+
+    /**
+     * chỉ lấy field lastMessage và messageSeq của room
+     */
+    public Room getMessageState(String roomId) {
+        var query = Query.query(Criteria.where("_id").is(roomId));
+        query.fields().include("lastMessage").include("messageSeq");
+        return mongoTemplate.findOne(query, Room.class);
+    }
+
+    /**
+     * thêm thành viên vào nhóm bằng một lệnh findAndModify ($push $each, $inc version)
+     * với điều kiện version không đổi kể từ lúc đọc, nếu có thay đổi đồng thời thì đọc lại và thử lại.
+     * user đã là thành viên thì bỏ qua.
+     * sau đó tạo inbox và readTracking cho các thành viên mới, mỗi collection một lệnh bulk
+     * và bỏ gợi ý kết bạn đã cache của cả nhóm vì số nhóm chung thay đổi
+     *
+     * @return room sau khi thêm
+     */
+    public Room addMembers(String roomId, Collection<Member> members, String addByUserId) {
+        for (var i = 0; i < membershipRetries; i++) {
+            var current = findMembership(roomId);
+            if (RoomType.ONE.equals(current.getType()))
+                throw new MyException("Không thể thêm thành viên. Vui lòng tạo nhóm mới");
+
+            Set<String> memberIds = memberIdsOf(current);
+            Map<String, Member> newMembers = new LinkedHashMap<>();
+            var now = new Date();
+            for (Member m : members) {
+                if (m.getUserId() == null || memberIds.contains(m.getUserId()))
+                    continue;
+                if (! m.getUserId().equals(addByUserId)) {
+                    m.setAddByUserId(addByUserId);
+                    m.setAddTime(now);
+                }
+                newMembers.putIfAbsent(m.getUserId(), m);
+            }
+            if (newMembers.isEmpty())
+                return roomCache.getRoom(roomId);
+
+            var update = new Update();
+            update.push("members").each(newMembers.values().toArray());
+            // version không đổi nên số thành viên tính từ lần đọc là chính xác
+            update.set("memberCount", memberIds.size() + newMembers.size());
+            update.inc("version", 1);
+            var room = mongoTemplate.findAndModify(versionQuery(roomId, current.getVersion()), update,
+                    FindAndModifyOptions.options().returnNew(true), Room.class);
+            if (room != null) {
+                roomCache.invalidate(roomId, room.getVersion());
+                createInboxesAndReadTrackings(room, newMembers.keySet());
+                memberIds.addAll(newMembers.keySet());
+                friendSuggestionService.invalidate(memberIds);
+                return room;
+            }
+        }
+        throw new MyException("Nhóm đang được cập nhật, vui lòng thử lại");
+    }
+
+    /**
+     * xóa thành viên khỏi nhóm bằng $pull, cùng cơ chế version như addMembers
+     *
+     * @return room sau khi xóa
+     */
+    public Room removeMember(String roomId, String userId) {
+        for (var i = 0; i < membershipRetries; i++) {
+            var current = findMembership(roomId);
+            Set<String> memberIds = memberIdsOf(current);
+            if (! memberIds.contains(userId))
+                return roomCache.getRoom(roomId);
+
+            var update = new Update();
+            update.pull("members", Query.query(Criteria.where("userId").is(userId)).getQueryObject());
+            update.set("memberCount", memberIds.size() - 1);
+            update.inc("version", 1);
+            var room = mongoTemplate.findAndModify(versionQuery(roomId, current.getVersion()), update,
+                    FindAndModifyOptions.options().returnNew(true), Room.class);
+            if (room != null) {
+                roomCache.invalidate(roomId, room.getVersion());
+                // ghi lại thời điểm rời nhóm để room fanOutOnRead không hiển thị tin nhắn gửi sau đó
+                var inboxUpdate = new Update();
+                inboxUpdate.set("leftAt", new Date());
+                mongoTemplate.updateFirst(Query.query(Criteria.where("ofUserId").is(userId).and("roomId").is(roomId)),
+                        inboxUpdate, Inbox.class);
+                if (RoomType.GROUP.equals(current.getType()))
+                    friendSuggestionService.invalidate(memberIds);
+                return room;
+            }
+        }
+        throw new MyException("Nhóm đang được cập nhật, vui lòng thử lại");
+    }
+
+    /**
+     * tạo inbox (empty, chưa hiện trong danh sách cho đến khi có tin nhắn) và readTracking cho các user,
+     * dùng upsert nên user đã có thì không tạo lại.
+     * thành viên mới không thấy và không tính là chưa đọc các tin nhắn gửi trước khi vào nhóm
+     * (clearedBefore = bây giờ, lastReadSeq = messageSeq hiện tại của room).
+     * user vào lại room fanOutOnRead thì bắt đầu lại từ thời điểm vào lại
+     * vì không lưu được khoảng thời gian đã rời nhóm
+     */
+    public void createInboxesAndReadTrackings(Room room, Collection<String> userIds) {
+        if (userIds.isEmpty())
+            return;
+        String roomId = room.getId();
+        long readSeq = room.getMessageSeq() == null ? 0 : room.getMessageSeq();
+        var now = new Date();
+        BulkOperations inboxOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Inbox.class);
+        BulkOperations readTrackingOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ReadTracking.class);
+        for (String userId : userIds) {
+            var inboxUpdate = new Update();
+            inboxUpdate.setOnInsert("empty", true);
+            if (Boolean.TRUE.equals(room.getFanOutOnRead()))
+                inboxUpdate.set("clearedBefore", now);
+            else
+                inboxUpdate.setOnInsert("clearedBefore", now);
+            inboxUpdate.unset("leftAt");
+            inboxOps.upsert(Query.query(Criteria.where("ofUserId").is(userId).and("roomId").is(roomId)), inboxUpdate);
+
+            var readTrackingUpdate = new Update();
+            readTrackingUpdate.setOnInsert("unReadMessage", 0);
+            readTrackingUpdate.setOnInsert("lastReadSeq", readSeq);
+            readTrackingOps.upsert(Query.query(Criteria.where("roomId").is(roomId).and("userId").is(userId)),
+                    readTrackingUpdate);
+        }
+        BulkWriteSupport.executeIgnoringDuplicates(inboxOps);
+        readTrackingOps.execute();
+    }
+
+    /**
+     * bật fanOutOnRead cho room, từ đây tin nhắn mới không tạo inboxMessage.
+     * trước khi chuyển cách đọc, ghi mốc cho các inbox (setVisibilityWatermarks)
+     * để khi đọc trực tiếp từ message user không thấy tin nhắn trước khi vào nhóm hoặc đã xóa
+     *
+     * @param messageCreateAt createAt của tin nhắn làm room chuyển sang fanOutOnRead, mốc phải nhỏ hơn
+     *                        để tin nhắn này vẫn hiển thị với các thành viên
+     */
+    public void enableFanOutOnRead(String roomId, Date messageCreateAt) {
+        var state = Query.query(Criteria.where("_id").is(roomId).and("fanOutOnRead").ne(true));
+        state.fields().include("members.userId").include("lastMessage.createAt");
+        var current = mongoTemplate.findOne(state, Room.class);
+        if (current == null)
+            return;
+        setVisibilityWatermarks(current, messageCreateAt);
+
+        var query = Query.query(Criteria.where("_id").is(roomId).and("fanOutOnRead").ne(true));
+        query.fields().include("version");
+        var room = mongoTemplate.findAndModify(query, new Update().set("fanOutOnRead", true),
+                FindAndModifyOptions.options().returnNew(true), Room.class);
+        if (room != null)
+            roomCache.invalidate(roomId, room.getVersion() == null ? 0 : room.getVersion());
+    }
+
+    /**
+     * chuyển phạm vi tin nhắn của từng inbox (các inboxMessage còn lại) thành mốc thời gian, một aggregation
+     * lấy inboxMessage cũ nhất và mới nhất của mỗi inbox rồi một lệnh bulk ghi các mốc:
+     * clearedBefore = ngay trước inboxMessage cũ nhất, hoặc thời điểm tin nhắn cuối của room nếu inbox không còn
+     * inboxMessage nào (không quá ngay trước messageCreateAt); user không còn trong nhóm mà chưa có leftAt thì leftAt = inboxMessage mới nhất.
+     * chỉ tăng mốc ($max) nên chạy lại hoặc chạy đồng thời không làm lộ thêm tin nhắn
+     */
+    private void setVisibilityWatermarks(Room room, Date messageCreateAt) {
+        var query = Query.query(Criteria.where("roomId").is(room.getId()));
+        query.fields().include("_id").include("ofUserId").include("leftAt");
+        List<Inbox> inboxes = mongoTemplate.find(query, Inbox.class);
+        if (inboxes.isEmpty())
+            return;
+
+        var aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("inboxId").in(inboxes.stream().map(Inbox::getId)
+                        .collect(Collectors.toList()))),
+                Aggregation.group("inboxId").min("messageCreateAt").as("oldest").max("messageCreateAt").as("newest"));
+        Map<String, Document> ranges = new HashMap<>();
+        mongoTemplate.aggregate(aggregation, InboxMessage.class, Document.class)
+                .forEach(x -> ranges.put(x.getString("_id"), x));
+
+        Set<String> memberIds = memberIdsOf(room);
+        var lastMessageAt = room.getLastMessage() == null || room.getLastMessage().getCreateAt() == null
+                ? new Date() : room.getLastMessage().getCreateAt();
+        // nhóm mới chưa có lastMessage: new Date() ở trên đã sau createAt của tin nhắn đang gửi
+        if (messageCreateAt != null && ! lastMessageAt.before(messageCreateAt))
+            lastMessageAt = new Date(messageCreateAt.getTime() - 1);
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Inbox.class);
+        for (Inbox inbox : inboxes) {
+            var range = ranges.get(inbox.getId());
+            var update = new Update();
+            if (range == null)
+                update.max("clearedBefore", lastMessageAt);
+            else {
+                // clearedBefore so sánh createAt > clearedBefore nên lùi 1ms để giữ inboxMessage cũ nhất
+                update.max("clearedBefore", new Date(range.getDate("oldest").getTime() - 1));
+                if (inbox.getLeftAt() == null && ! memberIds.contains(inbox.getOfUserId()))
+                    update.set("leftAt", range.getDate("newest"));
+            }
+            ops.updateOne(Query.query(Criteria.where("_id").is(inbox.getId())), update);
+        }
+        ops.execute();
+    }
+
+    /**
+     * đọc trực tiếp từ database (không dùng RoomCache) để các node thấy ngay khi room chuyển sang fanOutOnRead
+     */
+    public boolean isFanOutOnRead(String roomId) {
+        return ! fanOutOnReadRoomIds(List.of(roomId)).isEmpty();
+    }
+
+    /**
+     * @return id của các room đang bật fanOutOnRead trong roomIds, một truy vấn $in
+     */
+    public Set<String> fanOutOnReadRoomIds(Collection<String> roomIds) {
+        var query = Query.query(Criteria.where("_id").in(roomIds).and("fanOutOnRead").is(true));
+        query.fields().include("_id");
+        Set<String> result = new HashSet<>();
+        mongoTemplate.find(query, Room.class).forEach(x -> result.add(x.getId()));
+        return result;
+    }
+
+    /**
+     * id các nhóm (hơn 2 thành viên) của user, xếp theo id, dùng index {members.userId, type}.
+     * room cũ chưa có memberCount (RoomBackfillJob) vẫn được tính là nhóm
+     */
+    public List<String> groupIdsOf(String userId) {
+        var criteria = Criteria.where("members.userId").is(userId).and("type").is(RoomType.GROUP)
+                .and("memberCount").not().lte(2);
+        var query = Query.query(criteria);
+        query.fields().include("_id");
+        List<String> ids = new ArrayList<>();
+        mongoTemplate.find(query, Room.class).forEach(x -> ids.add(x.getId()));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * id các nhóm chung của hai user, giao hai danh sách đã sắp xếp trong một lần duyệt
+     */
+    public List<String> commonGroupIds(String userId, String otherId) {
+        List<String> first = groupIdsOf(userId);
+        List<String> second = groupIdsOf(otherId);
+        List<String> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < first.size() && j < second.size()) {
+            int compare = first.get(i).compareTo(second.get(j));
+            if (compare == 0) {
+                result.add(first.get(i));
+                i++;
+                j++;
+            } else if (compare < 0)
+                i++;
+            else
+                j++;
+        }
+        return result;
+    }
+
+    /**
+     * một trang nhóm chung của hai user, các room trong trang được đọc bằng một truy vấn $in
+     * và không đọc danh sách thành viên (số thành viên lấy từ memberCount)
+     */
+    public Page<Room> getCommonGroups(String userId, String otherId, Pageable pageable) {
+        List<String> ids = commonGroupIds(userId, otherId);
+        List<String> pageIds = ids;
+        if (pageable.isPaged()) {
+            int from = (int) Math.min(pageable.getOffset(), ids.size());
+            pageIds = ids.subList(from, Math.min(from + pageable.getPageSize(), ids.size()));
+        }
+        if (pageIds.isEmpty())
+            return new PageImpl<>(new ArrayList<>(), pageable, ids.size());
+        var query = Query.query(Criteria.where("_id").in(pageIds));
+        query.fields().include("_id").include("name").include("imageUrl").include("type").include("memberCount");
+        Map<String, Room> rooms = new HashMap<>();
+        mongoTemplate.find(query, Room.class).forEach(x -> rooms.put(x.getId(), x));
+        List<Room> content = pageIds.stream().map(rooms::get).filter(Objects::nonNull).collect(Collectors.toList());
+        return new PageImpl<>(content, pageable, ids.size());
+    }
+
+    /**
+     * chỉ đọc type, version và userId của thành viên
+     */
+    private Room findMembership(String roomId) {
+        var query = Query.query(Criteria.where("_id").is(roomId));
+        query.fields().include("type").include("version").include("members.userId");
+        var room = mongoTemplate.findOne(query, Room.class);
+        if (room == null)
+            throw new RoomNotFoundException();
+        return room;
+    }
+
+    private static Set<String> memberIdsOf(Room room) {
+        Set<String> ids = new HashSet<>();
+        if (room.getMembers() != null)
+            room.getMembers().forEach(x -> ids.add(x.getUserId()));
+        return ids;
+    }
+
+    /**
+     * room cũ chưa có field version được coi là version 0
+     */
+    private static Query versionQuery(String roomId, Long version) {
+        var criteria = Criteria.where("_id").is(roomId);
+        if (version == null || version == 0)
+            criteria.orOperator(Criteria.where("version").exists(false), Criteria.where("version").is(0));
+        else
+            criteria.and("version").is(version);
+        return Query.query(criteria);
+    }
+
+    private String truncate(String content) {
+        if (content == null || content.codePointCount(0, content.length()) <= lastMessageLength)
+            return content;
+        return content.substring(0, content.offsetByCodePoints(0, lastMessageLength));
+    }
+
 }
@@ -0,0 +1,216 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.InboxSyncDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.ReadByDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.SyncDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.MyException;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.ReadByMapper;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * đồng bộ thay đổi kể từ lần đồng bộ trước, dùng khi client kết nối lại
+ * <p>
+ * tin nhắn được đồng bộ theo (updateAt, _id) của message: tin nhắn mới có updateAt = createAt,
+ * tin nhắn bị gỡ, ghim, bày tỏ cảm xúc thì updateAt được cập nhật;
+ * thay đổi đã xem được đồng bộ theo (readAt, _id) của readTracking.
+ * chỉ trả về tin nhắn có trong inbox của user (MessageHistoryService.filterVisible)
+ * <p>
+ * mỗi lần trả về tối đa batch-size tin nhắn và batch-size readTracking;
+ * chỉ lấy các thay đổi cũ hơn settle-window để thay đổi được ghi trễ vài mili giây
+ * (đồng hồ lệch giữa các node, ghi đồng thời) không bị cursor bỏ qua
+ */
+@Service
+public class SyncService {
+
+    private static final ObjectId MIN_ID = new ObjectId("000000000000000000000000");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private ReadByMapper readByMapper;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private MessageHistoryService messageHistoryService;
+
+    @Value("${chat.sync.batch-size:200}")
+    private int batchSize;
+
+    @Value("${chat.sync.settle-window:1s}")
+    private Duration settleWindow;
+
+    /**
+     * đồng bộ tất cả inbox của user
+     */
+    public SyncDto syncAll(String userId, String cursor, Long since) {
+        var query = Query.query(Criteria.where("ofUserId").is(userId));
+        query.fields().include("_id").include("roomId").include("clearedBefore").include("leftAt");
+        return sync(mongoTemplate.find(query, Inbox.class), cursor, since);
+    }
+
+    /**
+     * đồng bộ một inbox, inbox phải thuộc về user hiện tại (kiểm tra trước khi gọi)
+     */
+    public SyncDto syncInbox(Inbox inbox, String cursor, Long since) {
+        return sync(List.of(inbox), cursor, since);
+    }
+
+    /**
+     * @param cursor cursor của lần đồng bộ trước
+     * @param since  khi chưa có cursor: lấy thay đổi từ thời điểm này (epoch millis), không truyền thì tính từ bây giờ
+     */
+    private SyncDto sync(List<Inbox> inboxes, String cursor, Long since) {
+        Position position;
+        if (cursor != null && ! cursor.isBlank())
+            position = decode(cursor);
+        else {
+            var from = new Date(since == null ? System.currentTimeMillis() : since);
+            position = new Position(from, MIN_ID, from, MIN_ID);
+        }
+
+        var result = new SyncDto();
+        if (inboxes.isEmpty()) {
+            result.setInboxes(new ArrayList<>());
+            result.setCursor(encode(position));
+            return result;
+        }
+
+        Map<String, Inbox> inboxOfRoom = new HashMap<>();
+        inboxes.forEach(x -> inboxOfRoom.put(x.getRoomId(), x));
+        List<String> roomIds = new ArrayList<>(inboxOfRoom.keySet());
+        var upper = new Date(System.currentTimeMillis() - settleWindow.toMillis());
+
+        // tin nhắn thay đổi
+        List<Message> messages = findAfter(Message.class, "updateAt", roomIds,
+                position.messageAt, position.messageId, upper);
+        var hasMore = messages.size() > batchSize;
+        if (hasMore)
+            messages = messages.subList(0, batchSize);
+
+        // thay đổi đã xem
+        List<ReadTracking> readTrackings = findAfter(ReadTracking.class, "readAt", roomIds,
+                position.readAt, position.readId, upper);
+        if (readTrackings.size() > batchSize) {
+            hasMore = true;
+            readTrackings = readTrackings.subList(0, batchSize);
+        }
+
+        Map<String, InboxSyncDto> changes = new LinkedHashMap<>();
+        List<Message> visible = messageHistoryService.filterVisible(messages, inboxOfRoom);
+        List<MessageDto> messageDto = messageMapper.toMessageDtos(visible);
+        for (var i = 0; i < visible.size(); i++)
+            changesOf(changes, inboxOfRoom.get(visible.get(i).getRoomId())).getMessages().add(messageDto.get(i));
+
+        Map<String, UserProfileDto> users = userMapper.toUserProfileDtos(readTrackings.stream()
+                .map(ReadTracking::getUserId).collect(Collectors.toSet()));
+        for (ReadTracking readTracking : readTrackings) {
+            ReadByDto dto = readByMapper.toReadByDto(readTracking, users.get(readTracking.getUserId()));
+            dto.setMessageId(readTracking.getMessageId());
+            changesOf(changes, inboxOfRoom.get(readTracking.getRoomId())).getReadbyes().add(dto);
+        }
+
+        // cursor dời đến thay đổi cuối cùng đã đọc, kể cả tin nhắn không hiển thị với user
+        if (! messages.isEmpty()) {
+            var last = messages.get(messages.size() - 1);
+            position.messageAt = last.getUpdateAt();
+            position.messageId = new ObjectId(last.getId());
+        }
+        if (! readTrackings.isEmpty()) {
+            var last = readTrackings.get(readTrackings.size() - 1);
+            position.readAt = last.getReadAt();
+            position.readId = new ObjectId(last.getId());
+        }
+
+        result.setInboxes(new ArrayList<>(changes.values()));
+        result.setCursor(encode(position));
+        result.setHasMore(hasMore);
+        return result;
+    }
+
+    /**
+     * lấy tối đa batchSize + 1 document có (stamp, _id) lớn hơn cursor và stamp không mới hơn upper
+     */
+    private <T> List<T> findAfter(Class<T> type, String stampField, List<String> roomIds,
+                                  Date stamp, ObjectId id, Date upper) {
+        var criteria = Criteria.where("roomId").in(roomIds)
+                .andOperator(Criteria.where(stampField).lte(upper),
+                        new Criteria().orOperator(Criteria.where(stampField).gt(stamp),
+                                Criteria.where(stampField).is(stamp).and("_id").gt(id)));
+        var query = Query.query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, stampField, "_id"))
+                .limit(batchSize + 1);
+        return mongoTemplate.find(query, type);
+    }
+
+    private static InboxSyncDto changesOf(Map<String, InboxSyncDto> changes, Inbox inbox) {
+        return changes.computeIfAbsent(inbox.getId(), x -> {
+            var dto = new InboxSyncDto();
+            dto.setInboxId(inbox.getId());
+            dto.setRoomId(inbox.getRoomId());
+            return dto;
+        });
+    }
+
+    private static String encode(Position position) {
+        var value = position.messageAt.getTime() + ":" + position.messageId.toHexString() + ":"
+                + position.readAt.getTime() + ":" + position.readId.toHexString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Position decode(String cursor) {
+        try {
+            var value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = value.split(":");
+            return new Position(new Date(Long.parseLong(parts[0])), new ObjectId(parts[1]),
+                    new Date(Long.parseLong(parts[2])), new ObjectId(parts[3]));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new MyException("Lỗi: cursor không hợp lệ");
+        }
+    }
+
+    private static class Position {
+        private Date messageAt;
+        private ObjectId messageId;
+        private Date readAt;
+        private ObjectId readId;
+
+        Position(Date messageAt, ObjectId messageId, Date readAt, ObjectId readId) {
+            this.messageAt = messageAt;
+            this.messageId = messageId;
+            this.readAt = readAt;
+            this.readId = readId;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * chuẩn hóa văn bản để tìm kiếm: chữ thường, bỏ dấu tiếng Việt (kể cả đ -> d),
+ * ký tự không phải chữ hoặc số được coi là khoảng trắng
+ * <p>
+ * "Nguyễn Văn Đức" -> ["nguyen", "van", "duc"]
+ */
+public final class TextNormalizer {
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private TextNormalizer() {
+    }
+
+    public static String fold(String text) {
+        if (text == null)
+            return "";
+        var lower = text.toLowerCase(Locale.ROOT).replace('đ', 'd');
+        var stripped = MARKS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+        return SEPARATORS.matcher(stripped).replaceAll(" ").trim();
+    }
+
+    public static List<String> tokens(String text) {
+        var folded = fold(text);
+        List<String> result = new ArrayList<>();
+        if (folded.isEmpty())
+            return result;
+        for (String token : folded.split(" "))
+            if (! token.isEmpty())
+                result.add(token);
+        return result;
+    }
+
+    /**
+     * tất cả tiền tố (dài tối đa maxLength) của từng từ
+     */
+    public static Set<String> prefixes(String text, int maxLength) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String token : tokens(text)) {
+            int length = Math.min(token.length(), maxLength);
+            for (var i = 1; i <= length; i++)
+                result.add(token.substring(0, i));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,59 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * tạo unique index trên collection đã có dữ liệu
+ * <p>
+ * unique index không được khai báo bằng @CompoundIndex vì auto-index-creation tạo index khi khởi động context,
+ * collection còn document trùng thì lỗi duplicate key làm ứng dụng không khởi động được.
+ * job khởi động gộp các document trùng (findDuplicates) rồi mới gọi ensureUnique
+ */
+public final class UniqueIndexSupport {
+
+    private UniqueIndexSupport() {
+    }
+
+    /**
+     * @return id của các nhóm document trùng giá trị fields, mỗi nhóm xếp theo _id tăng dần
+     */
+    public static List<List<Object>> findDuplicates(MongoTemplate mongoTemplate, Class<?> entityClass,
+                                                    String... fields) {
+        var aggregation = Aggregation.newAggregation(
+                Aggregation.sort(Sort.by("_id")),
+                Aggregation.group(fields).push("_id").as("ids").count().as("count"),
+                Aggregation.match(Criteria.where("count").gt(1)))
+                .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        List<List<Object>> result = new ArrayList<>();
+        mongoTemplate.aggregate(aggregation, entityClass, Document.class)
+                .forEach(x -> result.add(x.getList("ids", Object.class)));
+        return result;
+    }
+
+    /**
+     * tạo unique index, index cũ cùng key nhưng không unique (do @CompoundIndex tạo trước đây) được xóa trước
+     */
+    public static void ensureUnique(IndexOperations indexOps, Index index) {
+        List<String> keys = new ArrayList<>(index.getIndexKeys().keySet());
+        for (IndexInfo info : indexOps.getIndexInfo()) {
+            List<String> infoKeys = info.getIndexFields().stream().map(IndexField::getKey).collect(Collectors.toList());
+            if (! info.isUnique() && infoKeys.equals(keys))
+                indexOps.dropIndex(info.getName());
+        }
+        indexOps.ensureIndex(index.unique());
+    }
+
+}
@@ -0,0 +1,140 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.repository.ReadTrackingRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * số tin nhắn chưa đọc, có hai cách tính (chat.unread.mode):
+ * <ul>
+ *     <li>counter: mỗi tin nhắn tăng readTracking.unReadMessage của tất cả thành viên trừ người gửi,
+ *     số lần ghi tăng theo số thành viên</li>
+ *     <li>sequence: room.messageSeq là seq lớn nhất đã cấp cho tin nhắn của room, mỗi readTracking lưu lastReadSeq,
+ *     số tin nhắn chưa đọc = messageSeq - lastReadSeq được tính khi đọc,
+ *     gửi tin nhắn chỉ ghi thêm readTracking của người gửi dù nhóm có bao nhiêu thành viên</li>
+ * </ul>
+ * ở cả hai chế độ messageSeq và lastReadSeq đều được cập nhật nên có thể đổi chế độ mà không cần chuyển dữ liệu
+ */
+@Service
+public class UnreadService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ReadTrackingRepository readTrackingRepository;
+
+    @Autowired
+    private RoomService roomService;
+
+    @Value("${chat.unread.mode:counter}")
+    private String mode;
+
+    public boolean isSequenceMode() {
+        return "sequence".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * gọi sau khi lưu tin nhắn, người gửi coi như đã đọc đến tin nhắn của mình
+     *
+     * @param messageSeq seq của tin nhắn vừa lưu (RoomService.appendMessage)
+     */
+    public void onMessageSaved(String roomId, List<String> memberIds, String senderId, long messageSeq) {
+        var senderQuery = Query.query(Criteria.where("roomId").is(roomId).and("userId").is(senderId));
+        var senderUpdate = new Update();
+        senderUpdate.max("lastReadSeq", messageSeq);
+        if (isSequenceMode()) {
+            mongoTemplate.updateFirst(senderQuery, senderUpdate, ReadTracking.class);
+            return;
+        }
+        // tăng số tin nhắn chưa đọc cho tất cả thành viên trừ người gửi, gộp với người gửi trong một lệnh bulk
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ReadTracking.class);
+        var criteria = Criteria.where("roomId").is(roomId)
+                .and("userId").in(memberIds).ne(senderId);
+        ops.updateMulti(Query.query(criteria), new Update().inc("unReadMessage", 1));
+        ops.updateOne(senderQuery, senderUpdate);
+        ops.execute();
+    }
+
+    /**
+     * số tin nhắn chưa đọc của readTracking
+     *
+     * @param messageSeq messageSeq hiện tại của room, null với room cũ chưa có field này
+     */
+    public long unreadOf(ReadTracking readTracking, Long messageSeq) {
+        if (readTracking == null)
+            return 0;
+        if (! isSequenceMode())
+            return readTracking.getUnReadMessage();
+        return Math.max(0, (messageSeq == null ? 0 : messageSeq) - readTracking.getLastReadSeq());
+    }
+
+    public long countUnread(String roomId, String userId) {
+        var readTracking = readTrackingRepository.findByRoomIdAndUserId(roomId, userId);
+        if (readTracking == null)
+            return 0;
+        Long messageSeq = null;
+        if (isSequenceMode()) {
+            var room = roomService.getMessageState(roomId);
+            messageSeq = room == null ? null : room.getMessageSeq();
+        }
+        return unreadOf(readTracking, messageSeq);
+    }
+
+    /**
+     * đánh dấu đã đọc đến tin nhắn cuối của room, không ghi nếu không có tin nhắn chưa đọc
+     *
+     * @return readTracking sau khi cập nhật (messageId, readAt), null nếu không ghi
+     */
+    public ReadTracking markRead(String roomId, String userId) {
+        var readTracking = readTrackingRepository.findByRoomIdAndUserId(roomId, userId);
+        if (readTracking == null)
+            return null;
+        // lấy tin nhắn cuối và messageSeq trong room, không truy vấn collection message
+        var room = roomService.getMessageState(roomId);
+        Long messageSeq = room == null ? null : room.getMessageSeq();
+        if (unreadOf(readTracking, messageSeq) == 0)
+            return null;
+        var update = resetUpdate(room);
+        if (room != null && room.getLastMessage() != null) {
+            update.set("messageId", room.getLastMessage().getMessageId());
+            readTracking.setMessageId(room.getLastMessage().getMessageId());
+        }
+        readTracking.setReadAt(new Date());
+        update.set("readAt", readTracking.getReadAt());
+        mongoTemplate.updateFirst(readTrackingQuery(roomId, userId), update, ReadTracking.class);
+        return readTracking;
+    }
+
+    /**
+     * đưa số tin nhắn chưa đọc về 0 nhưng không thay đổi tin nhắn đã xem (khi xóa cuộc trò chuyện)
+     */
+    public void resetUnread(String roomId, String userId) {
+        mongoTemplate.updateFirst(readTrackingQuery(roomId, userId),
+                resetUpdate(roomService.getMessageState(roomId)), ReadTracking.class);
+    }
+
+    private static Update resetUpdate(Room room) {
+        var update = new Update();
+        update.set("unReadMessage", 0);
+        if (room != null && room.getMessageSeq() != null)
+            update.max("lastReadSeq", room.getMessageSeq());
+        return update;
+    }
+
+    private static Query readTrackingQuery(String roomId, String userId) {
+        return Query.query(Criteria.where("roomId").is(roomId).and("userId").is(userId));
+    }
+
+}
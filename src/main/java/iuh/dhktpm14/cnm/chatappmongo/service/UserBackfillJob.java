@@ -0,0 +1,93 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * bổ sung dữ liệu cho các user đã có trước khi thêm field mới
+ * <p>
+ * searchPrefixes, searchName: tính từ displayName của từng user chưa có, ghi lại theo lô
+ * <p>
+ * chạy một lần khi khởi động trong luồng riêng giống RoomBackfillJob, user đã có dữ liệu thì bỏ qua
+ */
+@Component
+public class UserBackfillJob implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserBackfillJob.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserSearchService userSearchService;
+
+    @Value("${chat.user.backfill.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.user.backfill.batch-size:500}")
+    private int batchSize;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (! enabled)
+            return;
+        var thread = new Thread(this::backfill, "user-backfill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void backfill() {
+        try {
+            long count = backfillSearchFields();
+            if (count > 0)
+                logger.info("Backfilled search fields of {} users", count);
+        } catch (Exception e) {
+            logger.error("User backfill failed: {}", e.getMessage());
+        }
+    }
+
+    private long backfillSearchFields() {
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            var criteria = new Criteria().orOperator(Criteria.where("searchPrefixes").exists(false),
+                    Criteria.where("searchName").exists(false));
+            if (lastId != null)
+                criteria.and("_id").gt(lastId);
+            var query = Query.query(criteria).with(Sort.by("_id")).limit(batchSize);
+            query.fields().include("_id").include("displayName");
+            List<User> users = mongoTemplate.find(query, User.class);
+            if (users.isEmpty())
+                return count;
+
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+            for (User user : users) {
+                var update = new Update();
+                update.set("searchPrefixes", new ArrayList<>(userSearchService.searchPrefixesOf(user.getDisplayName())));
+                update.set("searchName", TextNormalizer.fold(user.getDisplayName()));
+                // nếu trong lúc chạy user được lưu lại thì đã có searchName mới, không ghi đè
+                ops.updateOne(Query.query(Criteria.where("_id").is(user.getId()).and("searchName").exists(false)), update);
+            }
+            ops.execute();
+            count += users.size();
+            lastId = users.get(users.size() - 1).getId();
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * cache UserProfileDto dùng chung cho các mapper, tránh gọi userRepository.findById nhiều lần cho cùng một user
+ * <p>
+ * entry bị xóa khi hết hạn (ttl), khi cache đầy, khi user được lưu lại bằng repository.save()
+ * hoặc khi gọi evict() sau các lệnh update trực tiếp bằng mongoTemplate (onlineStatus, lastOnline)
+ * <p>
+ * số lần hit/miss xem tại /actuator/metrics/cache.gets?tag=cache:userProfile
+ */
+@Component
+public class UserProfileCache extends AbstractMongoEventListener<User> {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.cache.user-profile.max-size:10000}")
+    private long maxSize;
+
+    @Value("${chat.cache.user-profile.ttl:60s}")
+    private Duration ttl;
+
+    private Cache<String, UserProfileDto> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "userProfile");
+    }
+
+    /**
+     * lấy profile trong cache, nếu không có thì gọi loader, loader trả về null thì không lưu vào cache
+     */
+    public UserProfileDto get(String userId, Function<String, UserProfileDto> loader) {
+        return cache.get(userId, loader);
+    }
+
+    /**
+     * lấy nhiều profile cùng lúc, những id không có trong cache được truyền cho loader trong một lần gọi
+     * id không tìm thấy thì không có trong map trả về
+     */
+    public Map<String, UserProfileDto> getAll(Collection<String> userIds,
+                                              Function<Set<String>, Map<String, UserProfileDto>> loader) {
+        return cache.getAll(userIds, keys -> {
+            Set<String> missing = new HashSet<>();
+            keys.forEach(missing::add);
+            return loader.apply(missing);
+        });
+    }
+
+    public void evict(String userId) {
+        if (userId != null)
+            cache.invalidate(userId);
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<User> event) {
+        evict(event.getSource().getId());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<User> event) {
+        Object id = event.getSource().get("_id");
+        if (id != null)
+            evict(id.toString());
+    }
+
+}
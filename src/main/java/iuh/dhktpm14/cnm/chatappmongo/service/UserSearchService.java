@@ -0,0 +1,127 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.entity.User;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * tìm kiếm người dùng theo tên
+ * <p>
+ * mỗi user lưu searchPrefixes là tiền tố đã bỏ dấu của các từ trong displayName (được tính lại khi lưu user),
+ * từ khóa được tách từ và bỏ dấu giống vậy, user khớp khi chứa tất cả các từ ($all trên index multikey)
+ * nên "duc ng" tìm được "Nguyễn Văn Đức"
+ * <p>
+ * kết quả xếp theo thứ tự: bạn bè, người cùng nhóm, người khác (tối đa max-candidates người),
+ * trong mỗi nhóm xếp theo searchName (tên đã bỏ dấu) trong truy vấn nên max-candidates người khác
+ * là những người đầu tiên theo tên
+ */
+@Service
+public class UserSearchService extends AbstractMongoEventListener<User> {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private FriendGraphService friendGraphService;
+
+    @Value("${chat.search.user.max-prefix-length:20}")
+    private int maxPrefixLength;
+
+    @Value("${chat.search.user.max-candidates:200}")
+    private int maxCandidates;
+
+    @Override
+    public void onBeforeConvert(BeforeConvertEvent<User> event) {
+        var user = event.getSource();
+        // user được đọc theo projection không có displayName thì giữ nguyên
+        if (user.getDisplayName() != null) {
+            user.setSearchPrefixes(searchPrefixesOf(user.getDisplayName()));
+            user.setSearchName(TextNormalizer.fold(user.getDisplayName()));
+        }
+    }
+
+    public Set<String> searchPrefixesOf(String displayName) {
+        return TextNormalizer.prefixes(displayName, maxPrefixLength);
+    }
+
+    public Page<UserProfileDto> search(String userId, String keyword, Pageable pageable) {
+        List<String> terms = TextNormalizer.tokens(keyword).stream()
+                .map(x -> x.length() > maxPrefixLength ? x.substring(0, maxPrefixLength) : x)
+                .distinct()
+                .collect(Collectors.toList());
+        if (terms.isEmpty())
+            return Page.empty(pageable);
+
+        Set<String> friendIds = friendGraphService.getFriendIds(userId);
+        Set<String> groupMemberIds = groupMemberIdsOf(userId);
+        groupMemberIds.removeAll(friendIds);
+        groupMemberIds.remove(userId);
+
+        List<User> result = new ArrayList<>();
+        result.addAll(findMatched(terms, Criteria.where("_id").in(friendIds), friendIds.size()));
+        result.addAll(findMatched(terms, Criteria.where("_id").in(groupMemberIds), groupMemberIds.size()));
+        Set<String> excluded = new HashSet<>(friendIds);
+        excluded.addAll(groupMemberIds);
+        excluded.add(userId);
+        result.addAll(findMatched(terms, Criteria.where("_id").nin(excluded), maxCandidates));
+
+        if (pageable.isUnpaged())
+            return new PageImpl<>(toDtos(result), pageable, result.size());
+        int from = (int) Math.min(pageable.getOffset(), result.size());
+        int to = Math.min(from + pageable.getPageSize(), result.size());
+        return new PageImpl<>(toDtos(result.subList(from, to)), pageable, result.size());
+    }
+
+    /**
+     * @return user khớp tất cả các từ trong nhóm, xếp theo tên đã bỏ dấu
+     */
+    private List<User> findMatched(List<String> terms, Criteria scope, int limit) {
+        if (limit <= 0)
+            return new ArrayList<>();
+        var criteria = new Criteria().andOperator(Criteria.where("searchPrefixes").all(terms), scope);
+        var query = Query.query(criteria).with(Sort.by("searchName", "_id")).limit(limit);
+        query.fields().include("_id").include("displayName").include("imageUrl")
+                .include("onlineStatus").include("lastOnline");
+        return mongoTemplate.find(query, User.class);
+    }
+
+    private List<UserProfileDto> toDtos(Collection<User> users) {
+        return users.stream().map(userMapper::toUserProfileDto).collect(Collectors.toList());
+    }
+
+    private Set<String> groupMemberIdsOf(String userId) {
+        var query = Query.query(Criteria.where("members.userId").is(userId).and("type").is(RoomType.GROUP));
+        query.fields().include("members.userId");
+        Set<String> ids = new HashSet<>();
+        for (Room room : mongoTemplate.find(query, Room.class))
+            if (room.getMembers() != null)
+                room.getMembers().stream().map(Member::getUserId).forEach(ids::add);
+        return ids;
+    }
+
+}
@@ -0,0 +1,83 @@
+package iuh.dhktpm14.cnm.chatappmongo.chat;
+
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.InMemoryClusterBus;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.InMemoryClusterUserRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * hai node dùng chung InMemoryClusterBus và InMemoryClusterUserRegistry
+ */
+class UserMessageSenderTests {
+
+    private InMemoryClusterUserRegistry clusterUserRegistry;
+    private SimpMessagingTemplate templateA;
+    private SimpMessagingTemplate templateB;
+    private SimpUserRegistry simpUserRegistryA;
+    private UserMessageSender senderA;
+
+    @BeforeEach
+    void setUp() {
+        var clusterBus = new InMemoryClusterBus();
+        clusterUserRegistry = new InMemoryClusterUserRegistry();
+        templateA = mock(SimpMessagingTemplate.class);
+        templateB = mock(SimpMessagingTemplate.class);
+        simpUserRegistryA = mock(SimpUserRegistry.class);
+        senderA = newSender("node-a", templateA, simpUserRegistryA, clusterBus);
+        newSender("node-b", templateB, mock(SimpUserRegistry.class), clusterBus);
+    }
+
+    @Test
+    void sendsToOtherNodeWhenUserAlsoConnectedLocally() {
+        when(simpUserRegistryA.getUser("u1")).thenReturn(mock(SimpUser.class));
+        clusterUserRegistry.register("node-a", "u1", "s1");
+        clusterUserRegistry.register("node-b", "u1", "s2");
+
+        int failed = senderA.sendToUsers(List.of("u1"), "/queue/chat", Map.of("content", "hi"));
+
+        assertEquals(0, failed);
+        verify(templateA).convertAndSendToUser(eq("u1"), eq("/queue/chat"), any(Object.class));
+        verify(templateB).convertAndSendToUser(eq("u1"), eq("/queue/chat"), any(Object.class));
+    }
+
+    @Test
+    void sendsOnlyToNodesHoldingSession() {
+        clusterUserRegistry.register("node-b", "u2", "s3");
+
+        int failed = senderA.sendToUsers(List.of("u2", "u3"), "/queue/chat", Map.of("content", "hi"));
+
+        assertEquals(0, failed);
+        verify(templateA, never()).convertAndSendToUser(anyString(), anyString(), any(Object.class));
+        verify(templateB).convertAndSendToUser(eq("u2"), eq("/queue/chat"), any(Object.class));
+        verify(templateB, never()).convertAndSendToUser(eq("u3"), anyString(), any(Object.class));
+    }
+
+    private UserMessageSender newSender(String nodeId, SimpMessagingTemplate template,
+                                        SimpUserRegistry simpUserRegistry, InMemoryClusterBus clusterBus) {
+        var sender = new UserMessageSender();
+        ReflectionTestUtils.setField(sender, "messagingTemplate", template);
+        ReflectionTestUtils.setField(sender, "simpUserRegistry", simpUserRegistry);
+        ReflectionTestUtils.setField(sender, "clusterBus", clusterBus);
+        ReflectionTestUtils.setField(sender, "clusterUserRegistry", clusterUserRegistry);
+        ReflectionTestUtils.setField(sender, "nodeId", nodeId);
+        sender.init();
+        return sender;
+    }
+
+}
@@ -0,0 +1,99 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import iuh.dhktpm14.cnm.chatappmongo.chat.UserMessageSender;
+import iuh.dhktpm14.cnm.chatappmongo.chat.cluster.InMemoryClusterBus;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Friend;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * hai node dùng chung InMemoryClusterBus, mỗi node có cache riêng
+ */
+class FriendGraphServiceTests {
+
+    private MongoTemplate mongoTemplateA;
+    private MongoTemplate mongoTemplateB;
+    private BulkOperations bulkOps;
+    private FriendGraphService serviceA;
+    private FriendGraphService serviceB;
+
+    @BeforeEach
+    void setUp() {
+        var clusterBus = new InMemoryClusterBus();
+        mongoTemplateA = mock(MongoTemplate.class);
+        mongoTemplateB = mock(MongoTemplate.class);
+        bulkOps = mock(BulkOperations.class);
+        when(mongoTemplateA.bulkOps(any(BulkOperations.BulkMode.class), eq(Friend.class))).thenReturn(bulkOps);
+        when(mongoTemplateB.find(any(Query.class), eq(Friend.class))).thenReturn(new ArrayList<>());
+        serviceA = newService("node-a", mongoTemplateA, clusterBus);
+        serviceB = newService("node-b", mongoTemplateB, clusterBus);
+    }
+
+    @Test
+    void addFriendshipUpsertsBothDirections() {
+        serviceA.addFriendship("u1", "u2");
+
+        verify(bulkOps, times(2)).upsert(any(Query.class), any(Update.class));
+        verify(bulkOps).execute();
+    }
+
+    @Test
+    void otherNodeReloadsAndNotifiesListenersAfterChange() {
+        assertTrue(serviceB.getFriendIds("u1").isEmpty());
+        List<String> notified = new ArrayList<>();
+        serviceB.addListener((userId, friendId) -> notified.add(userId + ":" + friendId));
+
+        serviceA.addFriendship("u1", "u2");
+        when(mongoTemplateB.find(any(Query.class), eq(Friend.class)))
+                .thenReturn(List.of(Friend.builder().userId("u1").friendId("u2").build()));
+
+        assertEquals(Set.of("u2"), serviceB.getFriendIds("u1"));
+        assertEquals(List.of("u1:u2"), notified);
+    }
+
+    @Test
+    void nodeIgnoresItsOwnChange() {
+        List<String> notified = new ArrayList<>();
+        serviceA.addListener((userId, friendId) -> notified.add(userId + ":" + friendId));
+
+        serviceA.addFriendship("u1", "u2");
+
+        // chỉ lần gọi trực tiếp, không nhận lại envelope của chính mình
+        assertEquals(List.of("u1:u2"), notified);
+    }
+
+    private FriendGraphService newService(String nodeId, MongoTemplate mongoTemplate, InMemoryClusterBus clusterBus) {
+        var sender = mock(UserMessageSender.class);
+        when(sender.getNodeId()).thenReturn(nodeId);
+        var service = new FriendGraphService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "userMessageSender", sender);
+        ReflectionTestUtils.setField(service, "clusterBus", clusterBus);
+        ReflectionTestUtils.setField(service, "maxSize", 100L);
+        ReflectionTestUtils.setField(service, "ttl", Duration.ofMinutes(5));
+        service.init();
+        return service;
+    }
+
+}
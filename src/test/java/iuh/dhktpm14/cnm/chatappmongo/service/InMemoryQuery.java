@@ -0,0 +1,139 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * chạy Query của spring data trên danh sách entity trong bộ nhớ để test không cần MongoDB,
+ * hỗ trợ các toán tử mà các service dùng: $and, $or, $in, $nin, $ne, $lt, $lte, $gt, $gte, $exists, sort, skip, limit
+ */
+final class InMemoryQuery {
+
+    private InMemoryQuery() {
+    }
+
+    static <T> List<T> find(Query query, Collection<T> entities) {
+        List<T> result = entities.stream()
+                .filter(x -> matches(query.getQueryObject(), x))
+                .collect(Collectors.toList());
+        Comparator<T> comparator = null;
+        for (Map.Entry<String, Object> sort : query.getSortObject().entrySet()) {
+            Comparator<T> next = (x, y) -> compare(valueOf(x, sort.getKey()), valueOf(y, sort.getKey()));
+            if (((Number) sort.getValue()).intValue() < 0)
+                next = next.reversed();
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        if (comparator != null)
+            result.sort(comparator);
+        int from = (int) Math.min(query.getSkip(), result.size());
+        int to = query.getLimit() > 0 ? Math.min(from + query.getLimit(), result.size()) : result.size();
+        return new ArrayList<>(result.subList(from, to));
+    }
+
+    static boolean matches(Document criteria, Object entity) {
+        for (Map.Entry<String, Object> entry : criteria.entrySet()) {
+            var key = entry.getKey();
+            if ("$and".equals(key)) {
+                for (Object x : (Collection<?>) entry.getValue())
+                    if (! matches((Document) x, entity))
+                        return false;
+            } else if ("$or".equals(key)) {
+                var any = false;
+                for (Object x : (Collection<?>) entry.getValue())
+                    any |= matches((Document) x, entity);
+                if (! any)
+                    return false;
+            } else if (! matchesField(valueOf(entity, key), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesField(Object actual, Object condition) {
+        if (! (condition instanceof Document) || ((Document) condition).keySet().stream().noneMatch(x -> x.startsWith("$")))
+            return equal(actual, condition);
+        for (Map.Entry<String, Object> operator : ((Document) condition).entrySet()) {
+            var value = operator.getValue();
+            boolean matched;
+            switch (operator.getKey()) {
+                case "$in":
+                    matched = ((Collection<?>) value).stream().anyMatch(x -> equal(actual, x));
+                    break;
+                case "$nin":
+                    matched = ((Collection<?>) value).stream().noneMatch(x -> equal(actual, x));
+                    break;
+                case "$ne":
+                    matched = ! equal(actual, value);
+                    break;
+                case "$exists":
+                    matched = (actual != null) == Boolean.TRUE.equals(value);
+                    break;
+                case "$lt":
+                    matched = actual != null && compare(actual, value) < 0;
+                    break;
+                case "$lte":
+                    matched = actual != null && compare(actual, value) <= 0;
+                    break;
+                case "$gt":
+                    matched = actual != null && compare(actual, value) > 0;
+                    break;
+                case "$gte":
+                    matched = actual != null && compare(actual, value) >= 0;
+                    break;
+                case "$not":
+                    matched = ! matchesField(actual, value);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(operator.getKey());
+            }
+            if (! matched)
+                return false;
+        }
+        return true;
+    }
+
+    private static Object valueOf(Object entity, String field) {
+        var property = "_id".equals(field) ? "id" : field;
+        return new BeanWrapperImpl(entity).getPropertyValue(property);
+    }
+
+    private static boolean equal(Object actual, Object expected) {
+        if (actual instanceof Collection)
+            return ((Collection<?>) actual).stream().anyMatch(x -> equal(x, expected));
+        return Objects.equals(normalize(actual), normalize(expected));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object x, Object y) {
+        Object first = normalize(x);
+        Object second = normalize(y);
+        if (first == null || second == null)
+            return first == null ? (second == null ? 0 : -1) : 1;
+        return ((Comparable) first).compareTo(second);
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof ObjectId)
+            return ((ObjectId) value).toHexString();
+        if (value instanceof Enum)
+            return ((Enum<?>) value).name();
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof Date)
+            return ((Date) value).getTime();
+        return value;
+    }
+
+}
@@ -0,0 +1,196 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.CursorPageDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import iuh.dhktpm14.cnm.chatappmongo.repository.MessageRepository;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageHistoryServiceTests {
+
+    private static final String ROOM_ID = "room";
+    private static final Date T = new Date(1_600_000_000_000L);
+
+    private final List<Message> messages = new ArrayList<>();
+    private final List<InboxMessage> inboxMessages = new ArrayList<>();
+    private RoomService roomService;
+    private MessageHistoryService service;
+    private Inbox inbox;
+
+    @BeforeEach
+    void setUp() {
+        var mongoTemplate = mock(MongoTemplate.class);
+        var messageRepository = mock(MessageRepository.class);
+        var messageMapper = mock(MessageMapper.class);
+        roomService = mock(RoomService.class);
+
+        when(mongoTemplate.find(any(Query.class), eq(InboxMessage.class)))
+                .thenAnswer(x -> InMemoryQuery.find(x.getArgument(0), inboxMessages));
+        when(mongoTemplate.find(any(Query.class), eq(Message.class)))
+                .thenAnswer(x -> InMemoryQuery.find(x.getArgument(0), messages));
+        when(messageRepository.findAllById(any())).thenAnswer(x -> {
+            List<String> ids = new ArrayList<>();
+            ((Iterable<String>) x.getArgument(0)).forEach(ids::add);
+            return messages.stream().filter(m -> ids.contains(m.getId())).collect(Collectors.toList());
+        });
+        when(messageMapper.toMessageDtos(any())).thenAnswer(x -> ((List<Message>) x.getArgument(0)).stream()
+                .map(m -> {
+                    var dto = new MessageDto();
+                    dto.setId(m.getId());
+                    return dto;
+                })
+                .collect(Collectors.toList()));
+
+        service = new MessageHistoryService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "messageRepository", messageRepository);
+        ReflectionTestUtils.setField(service, "messageMapper", messageMapper);
+        ReflectionTestUtils.setField(service, "roomService", roomService);
+        ReflectionTestUtils.setField(service, "maxSize", 100);
+        ReflectionTestUtils.setField(service, "settleWindow", Duration.ofSeconds(1));
+
+        inbox = Inbox.builder().id(new ObjectId().toHexString()).roomId(ROOM_ID).ofUserId("u1").build();
+        // 5 tin nhắn cùng createAt nằm giữa một tin nhắn cũ hơn và một tin nhắn mới hơn
+        addMessage(new Date(T.getTime() - 1000));
+        for (var i = 0; i < 5; i++)
+            addMessage(T);
+        addMessage(new Date(T.getTime() + 1000));
+    }
+
+    @Test
+    void pagesThroughMessagesSharingCreateAt() {
+        when(roomService.isFanOutOnRead(anyString())).thenReturn(false);
+
+        assertEquals(expectedNewestFirst(null), readAllPages(2));
+    }
+
+    @Test
+    void pagesThroughMessagesSharingCreateAtInFanOutOnReadRoom() {
+        when(roomService.isFanOutOnRead(anyString())).thenReturn(true);
+
+        assertEquals(expectedNewestFirst(null), readAllPages(2));
+    }
+
+    @Test
+    void skipsMessagesUpToClearedBefore() {
+        when(roomService.isFanOutOnRead(anyString())).thenReturn(false);
+        inbox.setClearedBefore(T);
+
+        assertEquals(expectedNewestFirst(T), readAllPages(2));
+        assertEquals(1, readAllPages(2).size());
+    }
+
+    @Test
+    void skipsMessagesUpToClearedBeforeInFanOutOnReadRoom() {
+        when(roomService.isFanOutOnRead(anyString())).thenReturn(true);
+        inbox.setClearedBefore(T);
+
+        assertEquals(expectedNewestFirst(T), readAllPages(2));
+        assertEquals(1, readAllPages(2).size());
+    }
+
+    @Test
+    void afterSeqStopsBeforeRecentGap() {
+        when(roomService.fanOutOnReadRoomIds(any())).thenReturn(Set.of(ROOM_ID));
+        messages.clear();
+        var now = new Date();
+        // seq 3 đã được cấp nhưng chưa ghi xong, seq 4 đã được ghi trước
+        addSeqMessage(1, now);
+        addSeqMessage(2, now);
+        addSeqMessage(4, now);
+
+        var page = service.getMessagesAfterSeq(inbox, 0, 10);
+
+        assertEquals(List.of(messages.get(0).getId(), messages.get(1).getId()), idsOf(page));
+        assertEquals("2", page.getNextCursor());
+        assertFalse(page.isHasNext());
+
+        var next = service.getMessagesAfterSeq(inbox, 2, 10);
+        assertEquals(List.of(), idsOf(next));
+        assertEquals("2", next.getNextCursor());
+    }
+
+    @Test
+    void afterSeqSkipsSettledGap() {
+        when(roomService.fanOutOnReadRoomIds(any())).thenReturn(Set.of(ROOM_ID));
+        messages.clear();
+        // seq 1..2 là tin nhắn cũ không có seq, seq 4 được cấp nhưng lưu thất bại
+        addSeqMessage(3, T);
+        addSeqMessage(5, T);
+
+        var page = service.getMessagesAfterSeq(inbox, 0, 10);
+
+        assertEquals(List.of(messages.get(0).getId(), messages.get(1).getId()), idsOf(page));
+        assertEquals("5", page.getNextCursor());
+    }
+
+    private static List<String> idsOf(CursorPageDto<MessageDto> page) {
+        return page.getContent().stream().map(MessageDto::getId).collect(Collectors.toList());
+    }
+
+    private void addSeqMessage(long seq, Date createAt) {
+        messages.add(Message.builder().id(new ObjectId().toHexString()).roomId(ROOM_ID).seq(seq).createAt(createAt).build());
+    }
+
+    /**
+     * đọc hết các trang, mỗi trang xếp từ cũ đến mới nên đảo lại để được thứ tự từ mới đến cũ
+     */
+    private List<String> readAllPages(int size) {
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorPageDto<MessageDto> page = service.getMessagesBefore(inbox, cursor, size);
+            List<String> pageIds = page.getContent().stream().map(MessageDto::getId).collect(Collectors.toList());
+            for (var i = pageIds.size() - 1; i >= 0; i--)
+                ids.add(pageIds.get(i));
+            cursor = page.getNextCursor();
+            if (page.isHasNext())
+                assertFalse(pageIds.isEmpty());
+        } while (cursor != null);
+        return ids;
+    }
+
+    private List<String> expectedNewestFirst(Date clearedBefore) {
+        return messages.stream()
+                .filter(x -> clearedBefore == null || x.getCreateAt().after(clearedBefore))
+                .sorted(Comparator.comparing(Message::getCreateAt).thenComparing(Message::getId).reversed())
+                .map(Message::getId)
+                .collect(Collectors.toList());
+    }
+
+    private void addMessage(Date createAt) {
+        var message = Message.builder().id(new ObjectId().toHexString()).roomId(ROOM_ID).createAt(createAt).build();
+        messages.add(message);
+        inboxMessages.add(InboxMessage.builder()
+                .id(new ObjectId().toHexString())
+                .inboxId(inbox.getId())
+                .messageId(message.getId())
+                .messageCreateAt(createAt)
+                .build());
+    }
+
+}
@@ -0,0 +1,215 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import com.mongodb.client.result.UpdateResult;
+import iuh.dhktpm14.cnm.chatappmongo.dto.ReactionDto;
+import iuh.dhktpm14.cnm.chatappmongo.dto.UserProfileDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.MessageReaction;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Reaction;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.ReactionType;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.UserMapper;
+import iuh.dhktpm14.cnm.chatappmongo.repository.MessageReactionRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReactionServiceTests {
+
+    private static final String MESSAGE_ID = "m1";
+
+    private MongoTemplate mongoTemplate;
+    private BulkOperations reactionOps;
+    private ReactionService service;
+
+    /**
+     * các messageReaction đã được ghi bởi lệnh bulk upsert
+     */
+    private final List<MessageReaction> stored = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        reactionOps = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(MessageReaction.class))).thenReturn(reactionOps);
+        when(reactionOps.upsert(any(Query.class), any(Update.class))).thenAnswer(x -> {
+            Query query = x.getArgument(0);
+            Update update = x.getArgument(1);
+            var userId = query.getQueryObject().getString("userId");
+            var type = (ReactionType) ((Document) update.getUpdateObject().get("$setOnInsert")).get("type");
+            if (stored.stream().noneMatch(r -> r.getUserId().equals(userId)))
+                stored.add(MessageReaction.builder().messageId(MESSAGE_ID).userId(userId).type(type).build());
+            return reactionOps;
+        });
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(MessageReaction.class), eq(Document.class)))
+                .thenAnswer(x -> {
+                    Map<ReactionType, Long> counts = stored.stream()
+                            .collect(Collectors.groupingBy(MessageReaction::getType, Collectors.counting()));
+                    List<Document> documents = new ArrayList<>();
+                    counts.forEach((type, count) -> documents.add(new Document("_id", type).append("count", count)));
+                    return new AggregationResults<>(documents, new Document());
+                });
+
+        var userMapper = mock(UserMapper.class);
+        when(userMapper.toUserProfileDtos(any())).thenAnswer(x -> ((Collection<String>) x.getArgument(0)).stream()
+                .collect(Collectors.toMap(Function.identity(), id -> {
+                    var dto = new UserProfileDto();
+                    dto.setId(id);
+                    return dto;
+                })));
+
+        service = new ReactionService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "messageReactionRepository", mock(MessageReactionRepository.class));
+        ReflectionTestUtils.setField(service, "userMapper", userMapper);
+    }
+
+    @Test
+    void reactReplacesPreviousReactionOfUser() {
+        givenPreviousReaction(ReactionType.LIKE);
+
+        var previous = service.react(MESSAGE_ID, "u1", ReactionType.LOVE);
+
+        assertEquals(ReactionType.LIKE, previous);
+        var inc = (Document) messageUpdate().getUpdateObject().get("$inc");
+        assertEquals(1, inc.get("reactionCounts.LOVE"));
+        assertEquals(-1, inc.get("reactionCounts.LIKE"));
+    }
+
+    @Test
+    void reactWithSameTypeDoesNotChangeCounts() {
+        givenPreviousReaction(ReactionType.LIKE);
+
+        assertEquals(ReactionType.LIKE, service.react(MESSAGE_ID, "u1", ReactionType.LIKE));
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(Message.class));
+    }
+
+    @Test
+    void firstReactionOnlyIncrementsItsType() {
+        givenPreviousReaction(null);
+
+        assertNull(service.react(MESSAGE_ID, "u1", ReactionType.WOW));
+        var inc = (Document) messageUpdate().getUpdateObject().get("$inc");
+        assertEquals(Map.of("reactionCounts.WOW", 1), inc);
+    }
+
+    @Test
+    void migratesLegacyReactionsKeepingLastReactionOfEachUser() {
+        givenLegacyMessage();
+        // u3 đã bày tỏ cảm xúc theo cách mới trước khi tin nhắn được chuyển
+        stored.add(MessageReaction.builder().messageId(MESSAGE_ID).userId("u3").type(ReactionType.WOW).build());
+
+        assertEquals(true, service.migrateLegacy(MESSAGE_ID));
+
+        Map<String, ReactionType> byUser = stored.stream()
+                .collect(Collectors.toMap(MessageReaction::getUserId, MessageReaction::getType));
+        assertEquals(Map.of("u1", ReactionType.HAHA, "u2", ReactionType.LOVE, "u3", ReactionType.WOW), byUser);
+        var update = messageUpdate().getUpdateObject();
+        assertEquals(Map.of("HAHA", 1L, "LOVE", 1L, "WOW", 1L), ((Document) update.get("$set")).get("reactionCounts"));
+        assertTrue(((Document) update.get("$unset")).containsKey("reactions"));
+    }
+
+    @Test
+    void migrationWithoutReactionRowsStillUsesUpdateOperators() {
+        // tất cả reaction cũ không có type nên không có messageReaction nào
+        when(mongoTemplate.findOne(any(Query.class), eq(Message.class))).thenReturn(Message.builder().id(MESSAGE_ID)
+                .reactions(List.of(reaction("u1", null))).build());
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Message.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        assertTrue(service.migrateLegacy(MESSAGE_ID));
+
+        var update = messageUpdate().getUpdateObject();
+        assertTrue(update.keySet().stream().allMatch(x -> x.startsWith("$")));
+        assertEquals(Map.of(), ((Document) update.get("$set")).get("reactionCounts"));
+        verify(reactionOps, never()).execute();
+    }
+
+    @Test
+    void migrationReturnsFalseWhenAnotherRequestMigratedFirst() {
+        givenLegacyMessage();
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Message.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        assertFalse(service.migrateLegacy(MESSAGE_ID));
+        // lệnh ghi reactionCounts có điều kiện mảng reactions còn tồn tại
+        var query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateFirst(query.capture(), any(Update.class), eq(Message.class));
+        assertTrue(query.getValue().getQueryObject().containsKey("reactions"));
+    }
+
+    @Test
+    void getReactionsOfLegacyMessageDoesNotWrite() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Message.class))).thenReturn(legacyMessage());
+
+        var all = service.getReactions(MESSAGE_ID, null, PageRequest.of(0, 10));
+        var love = service.getReactions(MESSAGE_ID, ReactionType.LOVE, PageRequest.of(0, 10));
+
+        // người bày tỏ sau cùng lên đầu, mỗi user chỉ tính cảm xúc cuối cùng
+        assertEquals(List.of("u1", "u2"), all.getContent().stream()
+                .map(x -> x.getReactByUser().getId()).collect(Collectors.toList()));
+        assertEquals(List.of(ReactionType.HAHA, ReactionType.LOVE), all.getContent().stream()
+                .map(ReactionDto::getType).collect(Collectors.toList()));
+        assertEquals(1, love.getTotalElements());
+        verify(mongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(Message.class));
+        verify(reactionOps, never()).execute();
+    }
+
+    private void givenPreviousReaction(ReactionType type) {
+        var previous = type == null ? null
+                : MessageReaction.builder().messageId(MESSAGE_ID).userId("u1").type(type).build();
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(MessageReaction.class))).thenReturn(previous);
+    }
+
+    private void givenLegacyMessage() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Message.class))).thenReturn(legacyMessage());
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Message.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+    }
+
+    private static Message legacyMessage() {
+        return Message.builder().id(MESSAGE_ID).reactions(List.of(
+                reaction("u1", ReactionType.LIKE),
+                reaction("u2", ReactionType.LOVE),
+                reaction("u1", ReactionType.HAHA))).build();
+    }
+
+    private static Reaction reaction(String userId, ReactionType type) {
+        return Reaction.builder().reactByUserId(userId).type(type).build();
+    }
+
+    private Update messageUpdate() {
+        var update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(Message.class));
+        return update.getValue();
+    }
+
+}
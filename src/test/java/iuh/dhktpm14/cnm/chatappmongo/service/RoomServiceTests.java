@@ -0,0 +1,303 @@
+package iuh.dhktpm14.cnm.chatappmongo.service;
+
+import iuh.dhktpm14.cnm.chatappmongo.dto.MessageDto;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Inbox;
+import iuh.dhktpm14.cnm.chatappmongo.entity.InboxMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.LastMessage;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Member;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Message;
+import iuh.dhktpm14.cnm.chatappmongo.entity.ReadTracking;
+import iuh.dhktpm14.cnm.chatappmongo.entity.Room;
+import iuh.dhktpm14.cnm.chatappmongo.enumvalue.RoomType;
+import iuh.dhktpm14.cnm.chatappmongo.exceptions.MyException;
+import iuh.dhktpm14.cnm.chatappmongo.mapper.MessageMapper;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * thêm, xóa thành viên khi version của room bị thay đổi đồng thời, chuyển room sang fanOutOnRead
+ */
+class RoomServiceTests {
+
+    private static final String ROOM_ID = "room";
+
+    private MongoTemplate mongoTemplate;
+    private RoomCache roomCache;
+    private BulkOperations inboxOps;
+    private FriendSuggestionService friendSuggestionService;
+    private RoomService service;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        roomCache = mock(RoomCache.class);
+        inboxOps = mock(BulkOperations.class);
+        friendSuggestionService = mock(FriendSuggestionService.class);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(Inbox.class))).thenReturn(inboxOps);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(ReadTracking.class)))
+                .thenReturn(mock(BulkOperations.class));
+
+        service = new RoomService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "roomCache", roomCache);
+        ReflectionTestUtils.setField(service, "friendSuggestionService", friendSuggestionService);
+        ReflectionTestUtils.setField(service, "membershipRetries", 3);
+        ReflectionTestUtils.setField(service, "lastMessageLength", 100);
+    }
+
+    @Test
+    void addMembersRetriesWithReloadedVersionOnConflict() {
+        // lần đọc đầu version 1, trong lúc đó user c được thêm bởi request khác nên lần đọc sau là version 2
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class)))
+                .thenReturn(group(1L, "a", "b"), group(2L, "a", "b", "c"));
+        var saved = group(3L, "a", "b", "c", "d");
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Room.class)))
+                .thenReturn(null, saved);
+
+        var room = service.addMembers(ROOM_ID, List.of(member("c"), member("d")), "a");
+
+        assertSame(saved, room);
+        var queries = ArgumentCaptor.forClass(Query.class);
+        var updates = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).findAndModify(queries.capture(), updates.capture(),
+                any(FindAndModifyOptions.class), eq(Room.class));
+        assertEquals(1L, queries.getAllValues().get(0).getQueryObject().get("version"));
+        assertEquals(2L, queries.getAllValues().get(1).getQueryObject().get("version"));
+        // lần thử lại chỉ thêm d vì c đã là thành viên, memberCount tính lại từ lần đọc mới
+        var retry = updates.getAllValues().get(1).getUpdateObject();
+        assertEquals(4, ((Document) retry.get("$set")).get("memberCount"));
+        assertEquals(List.of("d"), pushedUserIds(retry));
+        verify(roomCache).invalidate(ROOM_ID, 3L);
+        verify(inboxOps, times(1)).upsert(any(Query.class), any(Update.class));
+        // số nhóm chung của cả nhóm thay đổi
+        verify(friendSuggestionService).invalidate(Set.of("a", "b", "c", "d"));
+    }
+
+    @Test
+    void addMembersGivesUpAfterRetries() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class))).thenReturn(group(1L, "a", "b"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Room.class)))
+                .thenReturn(null);
+
+        assertThrows(MyException.class, () -> service.addMembers(ROOM_ID, List.of(member("c")), "a"));
+        verify(mongoTemplate, times(3)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Room.class));
+    }
+
+    @Test
+    void removeMemberRetriesWithReloadedVersionOnConflict() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class)))
+                .thenReturn(group(1L, "a", "b", "c"), group(2L, "a", "b", "c", "d"));
+        var saved = group(3L, "a", "b", "d");
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Room.class)))
+                .thenReturn(null, saved);
+
+        var room = service.removeMember(ROOM_ID, "c");
+
+        assertSame(saved, room);
+        var queries = ArgumentCaptor.forClass(Query.class);
+        var updates = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate, times(2)).findAndModify(queries.capture(), updates.capture(),
+                any(FindAndModifyOptions.class), eq(Room.class));
+        assertEquals(2L, queries.getAllValues().get(1).getQueryObject().get("version"));
+        assertEquals(3, ((Document) updates.getAllValues().get(1).getUpdateObject().get("$set")).get("memberCount"));
+        verify(roomCache).invalidate(ROOM_ID, 3L);
+        verify(friendSuggestionService).invalidate(Set.of("a", "b", "c", "d"));
+    }
+
+    @Test
+    void removeMemberSkipsWhenAlreadyRemovedByConcurrentRequest() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class)))
+                .thenReturn(group(1L, "a", "b", "c"), group(2L, "a", "b"));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Room.class)))
+                .thenReturn(null);
+        var cached = group(2L, "a", "b");
+        when(roomCache.getRoom(ROOM_ID)).thenReturn(cached);
+
+        assertSame(cached, service.removeMember(ROOM_ID, "c"));
+        verify(mongoTemplate, times(1)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Room.class));
+    }
+
+    @Test
+    void lateJoinerDoesNotSeeEarlierMessagesAfterSwitchToFanOutOnRead() {
+        var t0 = new Date(1_600_000_000_000L);
+        var t1 = new Date(t0.getTime() + 1000);
+        var t2 = new Date(t0.getTime() + 2000);
+        var t3 = new Date(t0.getTime() + 3000);
+        // c vào nhóm lúc t2 bằng luồng cũ (inbox không có clearedBefore), x đã rời nhóm sau t1, d chưa có inboxMessage
+        var room = group(4L, "a", "c", "d");
+        room.setLastMessage(LastMessage.builder().createAt(t3).build());
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class))).thenReturn(room);
+        var inboxA = inbox("ia", "a");
+        var inboxC = inbox("ic", "c");
+        var inboxD = inbox("id", "d");
+        var inboxX = inbox("ix", "x");
+        when(mongoTemplate.find(any(Query.class), eq(Inbox.class))).thenReturn(List.of(inboxA, inboxC, inboxD, inboxX));
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(InboxMessage.class), eq(Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(
+                        range("ia", t0, t3), range("ic", t2, t3), range("ix", t0, t1)), new Document()));
+
+        service.enableFanOutOnRead(ROOM_ID, new Date(t3.getTime() + 1000));
+
+        var order = inOrder(inboxOps, mongoTemplate);
+        var queries = ArgumentCaptor.forClass(Query.class);
+        var updates = ArgumentCaptor.forClass(Update.class);
+        order.verify(inboxOps, times(4)).updateOne(queries.capture(), updates.capture());
+        order.verify(inboxOps).execute();
+        // mốc được ghi trước khi room chuyển sang đọc trực tiếp từ message
+        order.verify(mongoTemplate).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(Room.class));
+        Map<String, Inbox> inboxes = Map.of("ia", inboxA, "ic", inboxC, "id", inboxD, "ix", inboxX);
+        for (var i = 0; i < 4; i++)
+            apply(updates.getAllValues().get(i), inboxes.get(queries.getAllValues().get(i).getQueryObject().get("_id")));
+
+        assertEquals(new Date(t2.getTime() - 1), inboxC.getClearedBefore());
+        assertEquals(t3, inboxD.getClearedBefore());
+        assertEquals(t1, inboxX.getLeftAt());
+        assertNull(inboxA.getLeftAt());
+
+        // đọc lịch sử của c sau khi chuyển: chỉ còn tin nhắn từ lúc vào nhóm
+        List<Message> messages = List.of(message(t0), message(t1), message(t2), message(t3));
+        var history = new MessageHistoryService();
+        var historyTemplate = mock(MongoTemplate.class);
+        when(historyTemplate.find(any(Query.class), eq(Message.class)))
+                .thenAnswer(x -> InMemoryQuery.find(x.getArgument(0), messages));
+        var messageMapper = mock(MessageMapper.class);
+        when(messageMapper.toMessageDtos(any())).thenAnswer(x -> ((List<Message>) x.getArgument(0)).stream()
+                .map(m -> {
+                    var dto = new MessageDto();
+                    dto.setId(m.getId());
+                    return dto;
+                })
+                .collect(Collectors.toList()));
+        var roomService = mock(RoomService.class);
+        when(roomService.isFanOutOnRead(ROOM_ID)).thenReturn(true);
+        ReflectionTestUtils.setField(history, "mongoTemplate", historyTemplate);
+        ReflectionTestUtils.setField(history, "messageMapper", messageMapper);
+        ReflectionTestUtils.setField(history, "roomService", roomService);
+        ReflectionTestUtils.setField(history, "maxSize", 100);
+
+        List<String> visible = history.getMessagesBefore(inboxC, null, 10).getContent().stream()
+                .map(MessageDto::getId).collect(Collectors.toList());
+        assertEquals(List.of(messages.get(2).getId(), messages.get(3).getId()), visible);
+        assertTrue(history.getMessagesBefore(inboxD, null, 10).getContent().isEmpty());
+    }
+
+    @Test
+    void newGroupOverThresholdKeepsTriggeringMessageVisible() {
+        // nhóm mới chưa có tin nhắn nào nên không có lastMessage và inboxMessage
+        var createAt = new Date(1_600_000_000_000L);
+        when(mongoTemplate.findOne(any(Query.class), eq(Room.class))).thenReturn(group(1L, "a", "b"));
+        var inboxA = inbox("ia", "a");
+        var inboxB = inbox("ib", "b");
+        when(mongoTemplate.find(any(Query.class), eq(Inbox.class))).thenReturn(List.of(inboxA, inboxB));
+        when(mongoTemplate.aggregate(any(Aggregation.class), eq(InboxMessage.class), eq(Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(), new Document()));
+
+        service.enableFanOutOnRead(ROOM_ID, createAt);
+
+        var queries = ArgumentCaptor.forClass(Query.class);
+        var updates = ArgumentCaptor.forClass(Update.class);
+        verify(inboxOps, times(2)).updateOne(queries.capture(), updates.capture());
+        Map<String, Inbox> inboxes = Map.of("ia", inboxA, "ib", inboxB);
+        for (var i = 0; i < 2; i++)
+            apply(updates.getAllValues().get(i), inboxes.get(queries.getAllValues().get(i).getQueryObject().get("_id")));
+        // hiển thị khi createAt > clearedBefore
+        assertEquals(new Date(createAt.getTime() - 1), inboxA.getClearedBefore());
+        assertEquals(new Date(createAt.getTime() - 1), inboxB.getClearedBefore());
+    }
+
+    @Test
+    void appendMessageAllocatesSeqAndWritesLastMessageInOneCommand() {
+        var saved = Room.builder().id(ROOM_ID).messageSeq(7L).build();
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class),
+                eq(Room.class))).thenReturn(saved);
+        var message = message(new Date(1_600_000_000_000L));
+        message.setContent("$messageSeq");
+
+        assertEquals(7L, service.appendMessage(message));
+
+        var update = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(mongoTemplate).findAndModify(any(Query.class), update.capture(), any(FindAndModifyOptions.class),
+                eq(Room.class));
+        List<Document> pipeline = ((AggregationUpdate) update.getValue()).toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertEquals(2, pipeline.size());
+        var cond = (List<?>) ((Document) ((Document) pipeline.get(1).get("$set")).get("lastMessage")).get("$cond");
+        var lastMessage = (Document) cond.get(1);
+        // seq lấy từ messageSeq vừa tăng ở bước trước, content do người dùng nhập không phải field path
+        assertEquals("$messageSeq", lastMessage.get("seq"));
+        assertEquals(new Document("$literal", "$messageSeq"), lastMessage.get("content"));
+        assertEquals(new Document("$literal", message.getId()), lastMessage.get("messageId"));
+    }
+
+    private static void apply(Update update, Inbox inbox) {
+        var max = (Document) update.getUpdateObject().get("$max");
+        if (max != null && max.get("clearedBefore") != null)
+            inbox.setClearedBefore((Date) max.get("clearedBefore"));
+        var set = (Document) update.getUpdateObject().get("$set");
+        if (set != null && set.get("leftAt") != null)
+            inbox.setLeftAt((Date) set.get("leftAt"));
+    }
+
+    private static Inbox inbox(String id, String userId) {
+        return Inbox.builder().id(id).roomId(ROOM_ID).ofUserId(userId).build();
+    }
+
+    private static Document range(String inboxId, Date oldest, Date newest) {
+        return new Document("_id", inboxId).append("oldest", oldest).append("newest", newest);
+    }
+
+    private static Message message(Date createAt) {
+        return Message.builder().id(new ObjectId().toHexString()).roomId(ROOM_ID).createAt(createAt).build();
+    }
+
+    private static List<String> pushedUserIds(Document update) {
+        var modifiers = (Update.Modifiers) ((Document) update.get("$push")).get("members");
+        var each = (Object[]) modifiers.getModifiers().iterator().next().getValue();
+        return Arrays.stream(each).map(x -> ((Member) x).getUserId()).collect(Collectors.toList());
+    }
+
+    private static Room group(Long version, String... memberIds) {
+        Set<Member> members = Set.of(memberIds).stream().map(RoomServiceTests::member).collect(Collectors.toSet());
+        return Room.builder().id(ROOM_ID).type(RoomType.GROUP).version(version).members(members).build();
+    }
+
+    private static Member member(String userId) {
+        return Member.builder().userId(userId).build();
+    }
+
+}